@@ -0,0 +1,49 @@
+package com.tencent.matrix.plugin.agp7
+
+import com.tencent.matrix.trace.AopVisitorRegistry
+import com.tencent.matrix.trace.TraceClassLoader
+import org.gradle.api.GradleException
+import org.gradle.api.Project
+import org.gradle.api.provider.Provider
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+import java.io.File
+import java.net.URLClassLoader
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Aop visitor registries shared by the class passes of one build. AGP asks the factory for a
+ * visitor per class, the visitors are resolved once here and closed with the build.
+ */
+abstract class AopRegistryService : BuildService<BuildServiceParameters.None>, AutoCloseable {
+    companion object {
+        private const val NAME = "matrixAopRegistries"
+
+        fun register(project: Project): Provider<AopRegistryService> =
+                project.gradle.sharedServices.registerIfAbsent(NAME, AopRegistryService::class.java) {}
+    }
+
+    private val registries = ConcurrentHashMap<List<Any>, Pair<URLClassLoader, AopVisitorRegistry>>()
+
+    fun getRegistry(aopVisitors: List<String>, aopVisitorClasspath: Set<File>): AopVisitorRegistry {
+        return registries.computeIfAbsent(listOf(aopVisitors, aopVisitorClasspath)) {
+            // frames are computed by AGP's writer, the loader only has to see the visitors
+            val classLoader = TraceClassLoader.getClassLoader(null, emptyList(), aopVisitorClasspath)
+            val registry = AopVisitorRegistry.create(classLoader, aopVisitors.toTypedArray())
+            if (!registry.isChainable) {
+                classLoader.close()
+                throw GradleException("isInstrumentationApi needs IAopClassVisitorFactory visitors, " +
+                        "modifyClassBytes visitors need the trace task or transform.")
+            }
+            classLoader to registry
+        }.second
+    }
+
+    override fun close() {
+        for ((classLoader, registry) in registries.values) {
+            registry.close()
+            classLoader.close()
+        }
+        registries.clear()
+    }
+}
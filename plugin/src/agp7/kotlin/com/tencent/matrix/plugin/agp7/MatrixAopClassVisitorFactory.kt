@@ -0,0 +1,39 @@
+package com.tencent.matrix.plugin.agp7
+
+import com.android.build.api.instrumentation.AsmClassVisitorFactory
+import com.android.build.api.instrumentation.ClassContext
+import com.android.build.api.instrumentation.ClassData
+import com.android.build.api.instrumentation.InstrumentationParameters
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Internal
+import org.objectweb.asm.ClassVisitor
+
+/**
+ * Hands the aop visitor chain to AGP, in front of AGP's own class writer.
+ */
+abstract class MatrixAopClassVisitorFactory : AsmClassVisitorFactory<MatrixAopClassVisitorFactory.Parameters> {
+
+    interface Parameters : InstrumentationParameters {
+        @get:Input
+        val aopVisitors: ListProperty<String>
+
+        @get:Classpath
+        val aopVisitorClasspath: ConfigurableFileCollection
+
+        @get:Internal
+        val registryService: Property<AopRegistryService>
+    }
+
+    override fun createClassVisitor(classContext: ClassContext, nextClassVisitor: ClassVisitor): ClassVisitor {
+        val parameters = parameters.get()
+        val registry = parameters.registryService.get()
+                .getRegistry(parameters.aopVisitors.get(), parameters.aopVisitorClasspath.files)
+        return registry.createClassVisitor(instrumentationContext.apiVersion.get(), nextClassVisitor)
+    }
+
+    override fun isInstrumentable(classData: ClassData): Boolean = true
+}
@@ -0,0 +1,47 @@
+package com.tencent.matrix.plugin.agp7
+
+import com.android.build.api.instrumentation.FramesComputationMode
+import com.android.build.api.instrumentation.InstrumentationScope
+import com.android.build.api.variant.ApplicationAndroidComponentsExtension
+import com.tencent.matrix.javalib.util.Log
+import com.tencent.matrix.plugin.MatrixPlugin
+import com.tencent.matrix.plugin.task.MatrixTraceTask
+import com.tencent.matrix.trace.extension.MatrixTraceExtension
+import org.gradle.api.Project
+
+/**
+ * Runs the aop visitors of an application in AGP's own class pass, through the instrumentation api
+ * of AGP 7. AGP then visits each class once for all registered factories, and handles
+ * incrementality and caching per class itself.
+ *
+ * Loaded by name from MatrixTraceInjection, the rest of the plugin is compiled against AGP 4.
+ */
+object MatrixInstrumentation {
+    private const val TAG = "Matrix.Instrumentation"
+
+    @JvmStatic
+    fun register(project: Project, extension: MatrixTraceExtension) {
+        val androidComponents = project.extensions.getByType(ApplicationAndroidComponentsExtension::class.java)
+        val registryService = AopRegistryService.register(project)
+        androidComponents.onVariants(androidComponents.selector().all()) { variant ->
+            val matrixExtension = MatrixPlugin.mMatrixExtension
+            if (!extension.isEnable || !matrixExtension.isInstrumentationApi) {
+                return@onVariants
+            }
+            // the instrumentation api does not tell dependencies from project classes apart
+            val scope = when {
+                matrixExtension.isAopJar -> InstrumentationScope.ALL
+                matrixExtension.isAopSrc -> InstrumentationScope.PROJECT
+                else -> return@onVariants
+            }
+            variant.transformClassesWith(MatrixAopClassVisitorFactory::class.java, scope) { parameters ->
+                parameters.aopVisitors.set(matrixExtension.aopVisitors.orEmpty().toList())
+                parameters.aopVisitorClasspath.from(MatrixTraceTask.getAopVisitorClasspath(matrixExtension.aopVisitors))
+                parameters.registryService.set(registryService)
+            }
+            variant.setAsmFramesComputationMode(FramesComputationMode.COMPUTE_FRAMES_FOR_INSTRUMENTED_METHODS)
+            Log.i(TAG, "[register] %s aop visitors on %s, scope:%s", matrixExtension.aopVisitors.orEmpty().size,
+                    variant.name, scope)
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.tencent.matrix.javalib.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip through its central directory and gives access to the raw (still compressed)
+ * bytes of every entry, so entries can be copied by {@link RawZipOutputStream} without
+ * inflating and deflating them again.
+ * <p>
+ * Zip64 end records and offsets are read, zip64 entry sizes and encrypted archives are not
+ * supported, opening them throws a {@link ZipException} and callers should fall back to
+ * {@link java.util.zip.ZipFile}.
+ * </p>
+ * Reads are positional, an instance can be shared by several threads.
+ */
+public final class RawZipFile implements Closeable {
+
+    static final int LOCAL_HEADER_SIG = 0x04034b50;
+    static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    static final int ZIP64_END_OF_CENTRAL_DIR_SIG = 0x06064b50;
+    static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIG = 0x07064b50;
+    static final int ZIP64_END_OF_CENTRAL_DIR_SIZE = 56;
+    static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIZE = 20;
+    /**
+     * Zip64 extended information extra field holding only the local header offset.
+     */
+    static final int ZIP64_EXTRA_SIZE = 12;
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+
+    public RawZipFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * @return the uncompressed bytes of {@code entry}.
+     */
+    public byte[] readBytes(Entry entry) throws IOException {
+        byte[] raw = readRawBytes(entry);
+        if (entry.method == ZipEntry.STORED) {
+            return raw;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            byte[] data = new byte[(int) entry.size];
+            inflater.setInput(raw);
+            int offset = 0;
+            boolean padded = false;
+            while (!inflater.finished() && offset < data.length) {
+                int count = inflater.inflate(data, offset, data.length - offset);
+                if (count == 0) {
+                    if (inflater.needsInput() && !padded) {
+                        // zlib may need an extra dummy byte with nowrap
+                        inflater.setInput(new byte[1]);
+                        padded = true;
+                    } else {
+                        throw new ZipException("invalid deflated entry " + entry.name + " in " + file);
+                    }
+                }
+                offset += count;
+            }
+            if (offset != data.length) {
+                throw new ZipException("invalid entry size " + entry.name + " in " + file);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new ZipException("invalid deflated entry " + entry.name + " in " + file + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the bytes of {@code entry} as they are stored in the zip.
+     */
+    public byte[] readRawBytes(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry.compressedSize);
+        readFully(buffer, dataOffset(entry));
+        return buffer.array();
+    }
+
+    void transferRawBytes(Entry entry, OutputStream os) throws IOException {
+        long position = dataOffset(entry);
+        long remaining = entry.compressedSize;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FileUtil.BUFFER_SIZE, Math.max(remaining, 1)));
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            readFully(buffer, position);
+            os.write(buffer.array(), 0, buffer.limit());
+            position += buffer.limit();
+            remaining -= buffer.limit();
+        }
+    }
+
+    private long dataOffset(Entry entry) throws IOException {
+        long offset = entry.dataOffset;
+        if (offset < 0) {
+            ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, entry.localHeaderOffset);
+            if (header.getInt(0) != LOCAL_HEADER_SIG) {
+                throw new ZipException("invalid local header " + entry.name + " in " + file);
+            }
+            offset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                    + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+            entry.dataOffset = offset;
+        }
+        return offset;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIR_SIZE) {
+            throw new ZipException("zip file is too short: " + file);
+        }
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIR_SIZE + 0xffff);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(tail, fileSize - tailSize);
+        int eocd = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIR_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIR_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("end of central directory not found: " + file);
+        }
+        long totalEntries = tail.getShort(eocd + 10) & 0xffff;
+        long centralSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long centralOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        int locator = eocd - ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIG) {
+            ByteBuffer zip64End = ByteBuffer.allocate(ZIP64_END_OF_CENTRAL_DIR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(zip64End, tail.getLong(locator + 8));
+            if (zip64End.getInt(0) != ZIP64_END_OF_CENTRAL_DIR_SIG) {
+                throw new ZipException("invalid zip64 end of central directory: " + file);
+            }
+            totalEntries = zip64End.getLong(32);
+            centralSize = zip64End.getLong(40);
+            centralOffset = zip64End.getLong(48);
+        }
+        if (totalEntries > Integer.MAX_VALUE || centralSize > Integer.MAX_VALUE) {
+            throw new ZipException("central directory is too large: " + file);
+        }
+
+        ByteBuffer central = ByteBuffer.allocate((int) centralSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(central, centralOffset);
+        List<Entry> result = new ArrayList<>((int) totalEntries);
+        int position = 0;
+        for (int i = 0; i < totalEntries; i++) {
+            if (central.getInt(position) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("invalid central directory: " + file);
+            }
+            Entry entry = new Entry();
+            entry.versionMadeBy = central.getShort(position + 4) & 0xffff;
+            entry.flags = central.getShort(position + 8) & 0xffff;
+            entry.method = central.getShort(position + 10) & 0xffff;
+            entry.dosTime = central.getInt(position + 12);
+            entry.crc = central.getInt(position + 16) & 0xffffffffL;
+            entry.compressedSize = central.getInt(position + 20) & 0xffffffffL;
+            entry.size = central.getInt(position + 24) & 0xffffffffL;
+            int nameLength = central.getShort(position + 28) & 0xffff;
+            int extraLength = central.getShort(position + 30) & 0xffff;
+            int commentLength = central.getShort(position + 32) & 0xffff;
+            entry.externalAttributes = central.getInt(position + 38);
+            entry.localHeaderOffset = central.getInt(position + 42) & 0xffffffffL;
+            if ((entry.flags & 1) != 0) {
+                throw new ZipException("encrypted entry is not supported: " + file);
+            }
+            if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED) {
+                throw new ZipException("unsupported compression method " + entry.method + ": " + file);
+            }
+            if (entry.size == 0xffffffffL || entry.compressedSize == 0xffffffffL) {
+                throw new ZipException("zip64 entry size is not supported: " + file);
+            }
+            entry.rawName = new byte[nameLength];
+            central.position(position + CENTRAL_HEADER_SIZE);
+            central.get(entry.rawName);
+            if (entry.localHeaderOffset == 0xffffffffL) {
+                entry.localHeaderOffset = readZip64Offset(central, position + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+            }
+            // same as java.util.zip.ZipFile, which decodes names as UTF-8 by default
+            entry.name = new String(entry.rawName, StandardCharsets.UTF_8);
+            result.add(entry);
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+
+    /**
+     * @return the local header offset of the zip64 extra field, the only field saturated in it.
+     */
+    private long readZip64Offset(ByteBuffer central, int position, int extraLength) throws ZipException {
+        int end = position + extraLength;
+        while (position + 4 <= end) {
+            int id = central.getShort(position) & 0xffff;
+            int size = central.getShort(position + 2) & 0xffff;
+            if (id == 0x0001 && size >= 8) {
+                return central.getLong(position + 4);
+            }
+            position += 4 + size;
+        }
+        throw new ZipException("zip64 extra field not found: " + file);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new ZipException("unexpected end of zip file: " + file);
+            }
+            position += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static final class Entry {
+        String name;
+        byte[] rawName;
+        int versionMadeBy;
+        int flags;
+        int method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        int externalAttributes;
+        long localHeaderOffset;
+        volatile long dataOffset = -1;
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+}
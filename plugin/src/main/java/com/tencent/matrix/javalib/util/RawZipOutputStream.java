@@ -0,0 +1,297 @@
+package com.tencent.matrix.javalib.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Zip writer which copies entries of a {@link RawZipFile} verbatim (compressed bytes, crc and
+ * sizes), and only compresses the entries whose content is given as new bytes.
+ * <p>
+ * Entries are always written with their sizes in the local header, data descriptors of the
+ * source are dropped. Duplicate entry names are skipped.
+ * </p>
+ * <p>
+ * Jars of 0xffff entries or more, or whose central directory starts past 4GB, end with the zip64
+ * records. Single entries are never that large, they come from {@link RawZipFile} or byte arrays.
+ * </p>
+ */
+public final class RawZipOutputStream implements Closeable {
+
+    private static final String TAG = "Matrix.RawZipOutputStream";
+    private static final int VERSION_NEEDED = 20;
+    private static final int VERSION_NEEDED_ZIP64 = 45;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int FLAG_UTF8 = 1 << 11;
+    /**
+     * 1980-02-01 00:00:00 in MS-DOS format, the entry time of reproducible jars.
+     */
+    public static final int REPRODUCIBLE_DOS_TIME = (2 << 5 | 1) << 16;
+    /**
+     * Deflate level of reproducible jars, spelled out so it never depends on zlib's default.
+     */
+    public static final int REPRODUCIBLE_LEVEL = 6;
+
+    private final OutputStream os;
+    private final List<WrittenEntry> writtenEntries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final byte[] headerBuffer = new byte[RawZipFile.CENTRAL_HEADER_SIZE];
+    private final Deflater deflater;
+    private final boolean isReproducible;
+    private long offset;
+    private boolean finished;
+
+    public RawZipOutputStream(File output) throws IOException {
+        this(output, false);
+    }
+
+    /**
+     * @param isReproducible write every entry with {@link #REPRODUCIBLE_DOS_TIME} and compress new
+     *                       content with {@link #REPRODUCIBLE_LEVEL}, so the same entries always
+     *                       give the same bytes.
+     */
+    public RawZipOutputStream(File output, boolean isReproducible) throws IOException {
+        this.os = new BufferedOutputStream(new FileOutputStream(output), FileUtil.BUFFER_SIZE * 4);
+        this.isReproducible = isReproducible;
+        this.deflater = new Deflater(isReproducible ? REPRODUCIBLE_LEVEL : Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Copies {@code entry} without decompressing it.
+     */
+    public void copyEntry(RawZipFile zipFile, RawZipFile.Entry entry) throws IOException {
+        WrittenEntry written = newEntry(entry);
+        if (written == null) {
+            return;
+        }
+        written.method = entry.method;
+        written.crc = entry.crc;
+        written.compressedSize = entry.compressedSize;
+        written.size = entry.size;
+        writeLocalHeader(written);
+        zipFile.transferRawBytes(entry, os);
+        offset += entry.compressedSize;
+    }
+
+    /**
+     * Writes {@code data} as the new content of {@code entry}, compressed with the entry's own method.
+     */
+    public void putEntry(RawZipFile.Entry entry, byte[] data) throws IOException {
+        WrittenEntry written = newEntry(entry);
+        if (written == null) {
+            return;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        written.method = entry.method;
+        written.crc = crc32.getValue();
+        written.size = data.length;
+
+        byte[] content = data;
+        int contentLength = data.length;
+        if (entry.method == ZipEntry.DEFLATED) {
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            content = new byte[Math.max(64, data.length + data.length / 1000 + 64)];
+            contentLength = 0;
+            while (!deflater.finished()) {
+                if (contentLength == content.length) {
+                    byte[] larger = new byte[content.length * 2];
+                    System.arraycopy(content, 0, larger, 0, contentLength);
+                    content = larger;
+                }
+                contentLength += deflater.deflate(content, contentLength, content.length - contentLength);
+            }
+        }
+        written.compressedSize = contentLength;
+        writeLocalHeader(written);
+        os.write(content, 0, contentLength);
+        offset += contentLength;
+    }
+
+    /**
+     * Writes a new stored entry which has no counterpart in the source jar.
+     */
+    public void putEntry(String name, byte[] data) throws IOException {
+        RawZipFile.Entry entry = new RawZipFile.Entry();
+        entry.name = name;
+        entry.rawName = name.getBytes(StandardCharsets.UTF_8);
+        entry.flags = FLAG_UTF8;
+        entry.method = ZipEntry.STORED;
+        entry.dosTime = REPRODUCIBLE_DOS_TIME;
+        putEntry(entry, data);
+    }
+
+    private WrittenEntry newEntry(RawZipFile.Entry entry) {
+        if (!names.add(entry.name)) {
+            Log.w(TAG, "duplicate entry %s, skip", entry.name);
+            return null;
+        }
+        WrittenEntry written = new WrittenEntry();
+        written.rawName = entry.rawName;
+        written.flags = entry.flags & FLAG_UTF8;
+        written.dosTime = isReproducible ? REPRODUCIBLE_DOS_TIME : entry.dosTime;
+        written.versionMadeBy = entry.versionMadeBy;
+        written.externalAttributes = entry.externalAttributes;
+        written.localHeaderOffset = offset;
+        writtenEntries.add(written);
+        return written;
+    }
+
+    private void writeLocalHeader(WrittenEntry entry) throws IOException {
+        int position = 0;
+        position = putInt(headerBuffer, position, RawZipFile.LOCAL_HEADER_SIG);
+        position = putShort(headerBuffer, position, VERSION_NEEDED);
+        position = putShort(headerBuffer, position, entry.flags);
+        position = putShort(headerBuffer, position, entry.method);
+        position = putInt(headerBuffer, position, entry.dosTime);
+        position = putInt(headerBuffer, position, (int) entry.crc);
+        position = putInt(headerBuffer, position, (int) entry.compressedSize);
+        position = putInt(headerBuffer, position, (int) entry.size);
+        position = putShort(headerBuffer, position, entry.rawName.length);
+        position = putShort(headerBuffer, position, 0);
+        os.write(headerBuffer, 0, position);
+        os.write(entry.rawName);
+        offset += position + entry.rawName.length;
+    }
+
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long centralOffset = offset;
+        for (WrittenEntry entry : writtenEntries) {
+            boolean isZip64Offset = entry.localHeaderOffset >= ZIP64_MAGIC;
+            int position = 0;
+            position = putInt(headerBuffer, position, RawZipFile.CENTRAL_HEADER_SIG);
+            position = putShort(headerBuffer, position, entry.versionMadeBy);
+            position = putShort(headerBuffer, position, isZip64Offset ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED);
+            position = putShort(headerBuffer, position, entry.flags);
+            position = putShort(headerBuffer, position, entry.method);
+            position = putInt(headerBuffer, position, entry.dosTime);
+            position = putInt(headerBuffer, position, (int) entry.crc);
+            position = putInt(headerBuffer, position, (int) entry.compressedSize);
+            position = putInt(headerBuffer, position, (int) entry.size);
+            position = putShort(headerBuffer, position, entry.rawName.length);
+            position = putShort(headerBuffer, position, isZip64Offset ? RawZipFile.ZIP64_EXTRA_SIZE : 0);
+            position = putShort(headerBuffer, position, 0);
+            position = putShort(headerBuffer, position, 0);
+            position = putShort(headerBuffer, position, 0);
+            position = putInt(headerBuffer, position, entry.externalAttributes);
+            position = putInt(headerBuffer, position, (int) Math.min(entry.localHeaderOffset, ZIP64_MAGIC));
+            os.write(headerBuffer, 0, position);
+            os.write(entry.rawName);
+            offset += position + entry.rawName.length;
+            if (isZip64Offset) {
+                position = 0;
+                position = putShort(headerBuffer, position, ZIP64_EXTRA_ID);
+                position = putShort(headerBuffer, position, RawZipFile.ZIP64_EXTRA_SIZE - 4);
+                position = putLong(headerBuffer, position, entry.localHeaderOffset);
+                os.write(headerBuffer, 0, position);
+                offset += position;
+            }
+        }
+        long centralSize = offset - centralOffset;
+        int entryCount = writtenEntries.size();
+        if (entryCount >= 0xffff || centralSize >= ZIP64_MAGIC || centralOffset >= ZIP64_MAGIC) {
+            writeZip64End(entryCount, centralSize, centralOffset);
+        }
+        int position = 0;
+        position = putInt(headerBuffer, position, RawZipFile.END_OF_CENTRAL_DIR_SIG);
+        position = putShort(headerBuffer, position, 0);
+        position = putShort(headerBuffer, position, 0);
+        position = putShort(headerBuffer, position, Math.min(entryCount, 0xffff));
+        position = putShort(headerBuffer, position, Math.min(entryCount, 0xffff));
+        position = putInt(headerBuffer, position, (int) Math.min(centralSize, ZIP64_MAGIC));
+        position = putInt(headerBuffer, position, (int) Math.min(centralOffset, ZIP64_MAGIC));
+        position = putShort(headerBuffer, position, 0);
+        os.write(headerBuffer, 0, position);
+        os.flush();
+    }
+
+    /**
+     * Zip64 end of central directory record and its locator, the plain end of central directory
+     * record that follows saturates the fields they carry.
+     */
+    private void writeZip64End(int entryCount, long centralSize, long centralOffset) throws IOException {
+        long zip64EndOffset = offset;
+        byte[] buffer = new byte[RawZipFile.ZIP64_END_OF_CENTRAL_DIR_SIZE];
+        int position = 0;
+        position = putInt(buffer, position, RawZipFile.ZIP64_END_OF_CENTRAL_DIR_SIG);
+        position = putLong(buffer, position, RawZipFile.ZIP64_END_OF_CENTRAL_DIR_SIZE - 12);
+        position = putShort(buffer, position, VERSION_NEEDED_ZIP64);
+        position = putShort(buffer, position, VERSION_NEEDED_ZIP64);
+        position = putInt(buffer, position, 0);
+        position = putInt(buffer, position, 0);
+        position = putLong(buffer, position, entryCount);
+        position = putLong(buffer, position, entryCount);
+        position = putLong(buffer, position, centralSize);
+        position = putLong(buffer, position, centralOffset);
+        os.write(buffer, 0, position);
+        offset += position;
+
+        position = 0;
+        position = putInt(buffer, position, RawZipFile.ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIG);
+        position = putInt(buffer, position, 0);
+        position = putLong(buffer, position, zip64EndOffset);
+        position = putInt(buffer, position, 1);
+        os.write(buffer, 0, position);
+        offset += position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            deflater.end();
+            os.close();
+        }
+    }
+
+    private static int putShort(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >>> 8);
+        return position + 2;
+    }
+
+    private static int putInt(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >>> 8);
+        buffer[position + 2] = (byte) (value >>> 16);
+        buffer[position + 3] = (byte) (value >>> 24);
+        return position + 4;
+    }
+
+    private static int putLong(byte[] buffer, int position, long value) {
+        position = putInt(buffer, position, (int) value);
+        return putInt(buffer, position, (int) (value >>> 32));
+    }
+
+    private static class WrittenEntry {
+        byte[] rawName;
+        int versionMadeBy;
+        int flags;
+        int method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        int externalAttributes;
+        long localHeaderOffset;
+    }
+}
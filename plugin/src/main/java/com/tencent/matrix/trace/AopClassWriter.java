@@ -0,0 +1,89 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.Log;
+
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * ClassWriter used by the fused aop visitor chain, it resolves the class hierarchy
+ * needed by frame computation through the {@link ClassHierarchyIndex} when there is one,
+ * and through the trace class loader otherwise.
+ * <p>
+ * A hierarchy which can not be resolved fails the class with {@link MissingTypeException},
+ * guessing {@code java/lang/Object} produces frames the verifier rejects at runtime.
+ * </p>
+ */
+public class AopClassWriter extends ClassWriter {
+
+    private static final String TAG = "Matrix.AopClassWriter";
+
+    private final ClassLoader classLoader;
+    private final ClassHierarchyIndex classHierarchy;
+    private final boolean isLenientFrames;
+    private boolean isTypeResolved;
+
+    public AopClassWriter(int flags, ClassLoader classLoader) {
+        this(flags, classLoader, null);
+    }
+
+    public AopClassWriter(int flags, ClassLoader classLoader, ClassHierarchyIndex classHierarchy) {
+        this(flags, classLoader, classHierarchy, false);
+    }
+
+    /**
+     * @param isLenientFrames fall back to {@code java/lang/Object} for types missing from the trace
+     *                        classpath instead of failing, see {@code MatrixExtension.isLenientFrames}.
+     */
+    public AopClassWriter(int flags, ClassLoader classLoader, ClassHierarchyIndex classHierarchy, boolean isLenientFrames) {
+        super(flags);
+        this.classLoader = classLoader;
+        this.classHierarchy = classHierarchy;
+        this.isLenientFrames = isLenientFrames;
+    }
+
+    @Override
+    protected ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        isTypeResolved = true;
+        if (classHierarchy != null) {
+            String commonSuperClass = classHierarchy.getCommonSuperClass(type1, type2, classLoader);
+            if (commonSuperClass != null) {
+                return commonSuperClass;
+            }
+        }
+        try {
+            return super.getCommonSuperClass(type1, type2);
+        } catch (RuntimeException | LinkageError e) {
+            if (!isLenientFrames) {
+                throw new MissingTypeException(type1, type2, e);
+            }
+            Log.w(TAG, "[getCommonSuperClass] %s, %s e:%s", type1, type2, e.getMessage());
+            return "java/lang/Object";
+        }
+    }
+
+    /**
+     * @return whether frame computation had to look at the hierarchy of other classes, the output
+     * then depends on more than the bytes of the class written.
+     */
+    public boolean isTypeResolved() {
+        return isTypeResolved;
+    }
+
+    /**
+     * Thrown when frame computation needs a type the trace classpath does not contain.
+     */
+    public static class MissingTypeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        MissingTypeException(String type1, String type2, Throwable cause) {
+            super("can not compute the common super class of " + type1 + " and " + type2
+                    + ", add the missing type to the classpath or enable isLenientFrames", cause);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.IOUtil;
+import com.tencent.matrix.javalib.util.Log;
+import com.tencent.matrix.javalib.util.Util;
+import com.tencent.matrix.plugin.compat.AgpCompat;
+import com.tencent.matrix.trace.extension.IAopClassVisitorFactory;
+import com.tencent.matrix.trace.extension.IAopVisitorLifecycle;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the configured aop visitors once per transform.
+ * <p>
+ * Each visitor is bound to a {@link MethodHandle} (legacy {@code modifyClassBytes}) or used
+ * through {@link IAopClassVisitorFactory} directly. Instances are confined to the thread which
+ * created them and reused for all the classes that thread handles.
+ * </p>
+ */
+public class AopVisitorRegistry implements Closeable {
+
+    private static final String TAG = "Matrix.AopVisitorRegistry";
+    private static final MethodType MODIFY_CLASS_BYTES_TYPE = MethodType.methodType(byte[].class, byte[].class);
+
+    private final ClassLoader classLoader;
+    private final Class<?>[] visitorClasses;
+    private final MethodHandle[] modifyClassBytesHandles;
+    private final String identity;
+    private final Map<Thread, ThreadVisitors> threadVisitors = new ConcurrentHashMap<>();
+    private volatile ClassHierarchyIndex classHierarchy;
+    private volatile boolean isLenientFrames;
+    /**
+     * Hierarchy read from the class loader on demand, when there is no {@link #classHierarchy}.
+     */
+    private final ClassHierarchyIndex loaderHierarchy = new ClassHierarchyIndex();
+
+    private AopVisitorRegistry(ClassLoader classLoader, Class<?>[] visitorClasses, MethodHandle[] modifyClassBytesHandles, String identity) {
+        this.classLoader = classLoader;
+        this.visitorClasses = visitorClasses;
+        this.modifyClassBytesHandles = modifyClassBytesHandles;
+        this.identity = identity;
+    }
+
+    public static AopVisitorRegistry create(ClassLoader classLoader, String[] aopVisitors) {
+        int size = aopVisitors == null ? 0 : aopVisitors.length;
+        Class<?>[] visitorClasses = new Class<?>[size];
+        MethodHandle[] handles = new MethodHandle[size];
+        Set<File> codeSources = new TreeSet<>();
+        MessageDigest digest = TransformedClassCache.newDigest();
+        digest.update(String.valueOf(AgpCompat.getAsmApi()).getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < size; i++) {
+            String aopClassName = aopVisitors[i];
+            try {
+                visitorClasses[i] = classLoader.loadClass(aopClassName);
+                if (!IAopClassVisitorFactory.class.isAssignableFrom(visitorClasses[i])) {
+                    handles[i] = MethodHandles.publicLookup().findVirtual(visitorClasses[i], "modifyClassBytes", MODIFY_CLASS_BYTES_TYPE);
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("can not resolve aop visitor " + aopClassName, e);
+            }
+            digest.update(aopClassName.getBytes(StandardCharsets.UTF_8));
+            digest.update(readClassBytes(classLoader, aopClassName));
+            File codeSource = getCodeSource(visitorClasses[i]);
+            if (codeSource != null) {
+                codeSources.add(codeSource);
+            }
+        }
+        // visitors may change through any class or resource next to them, not only their own class
+        for (File codeSource : codeSources) {
+            try {
+                updateDigest(digest, codeSource, codeSource);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("can not read aop visitor classpath " + codeSource, e);
+            }
+        }
+        String identity = Util.byteArrayToHex(digest.digest());
+        Log.i(TAG, "[create] %s aop visitors, identity:%s", size, identity);
+        return new AopVisitorRegistry(classLoader, visitorClasses, handles, identity);
+    }
+
+    private static byte[] readClassBytes(ClassLoader classLoader, String className) {
+        InputStream is = classLoader.getResourceAsStream(className.replace('.', '/') + ".class");
+        if (is == null) {
+            return new byte[0];
+        }
+        try {
+            return IOUtils.toByteArray(is);
+        } catch (IOException e) {
+            return new byte[0];
+        } finally {
+            IOUtil.closeQuietly(is);
+        }
+    }
+
+    private static File getCodeSource(Class<?> visitorClass) {
+        CodeSource codeSource = visitorClass.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) {
+            return null;
+        }
+        try {
+            return new File(codeSource.getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            Log.w(TAG, "[getCodeSource] %s e:%s", codeSource.getLocation(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static void updateDigest(MessageDigest digest, File root, File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files);
+            for (File child : files) {
+                updateDigest(digest, root, child);
+            }
+        } else if (file.isFile()) {
+            digest.update(root.toURI().relativize(file.toURI()).getPath().getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    /**
+     * Hash of the asm api, visitor names and the jars or directories the visitors are loaded
+     * from, changes whenever the visitor chain may produce a different output.
+     */
+    public String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Lets frame computation of the fused passes answer hierarchy questions from {@code classHierarchy}
+     * instead of loading classes.
+     */
+    public void setClassHierarchy(ClassHierarchyIndex classHierarchy) {
+        this.classHierarchy = classHierarchy;
+    }
+
+    /**
+     * Lets frame computation fall back to {@code java/lang/Object} for types missing from the
+     * trace classpath instead of failing the class.
+     */
+    public void setLenientFrames(boolean lenientFrames) {
+        this.isLenientFrames = lenientFrames;
+    }
+
+    /**
+     * Supertypes of the class, part of the {@link TransformedClassCache} key since visitors may
+     * treat a class by what it extends.
+     */
+    public String getHierarchyKey(byte[] classBytes) {
+        ClassReader classReader = new ClassReader(classBytes);
+        ClassHierarchyIndex index = classHierarchy != null ? classHierarchy : loaderHierarchy;
+        StringBuilder key = new StringBuilder();
+        for (String supertype : index.getSupertypes(classReader.getSuperName(), classReader.getInterfaces(), classLoader)) {
+            key.append(supertype).append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Whether frame computation of the last {@link #transform} on the calling thread resolved the
+     * hierarchy of other classes, its output is then not only a function of the class and its supertypes.
+     */
+    public boolean isLastTransformTypeResolved() {
+        ThreadVisitors visitors = threadVisitors.get(Thread.currentThread());
+        return visitors != null && visitors.isTypeResolved;
+    }
+
+    public boolean isEmpty() {
+        return visitorClasses.length == 0;
+    }
+
+    /**
+     * Runs the visitors in order. Consecutive {@link IAopClassVisitorFactory} visitors are chained
+     * into a single read/write pass, legacy visitors still get the bytes of the previous pass.
+     */
+    public byte[] transform(byte[] sourceBytes) throws Exception {
+        if (isEmpty()) {
+            return sourceBytes;
+        }
+        ThreadVisitors visitors = getThreadVisitors();
+        visitors.isTypeResolved = false;
+        int fusedStart = 0;
+        for (int i = 0; i < visitorClasses.length; i++) {
+            if (visitors.modifyClassBytes[i] == null) {
+                continue;
+            }
+            sourceBytes = visitFused(sourceBytes, visitors, fusedStart, i);
+            try {
+                sourceBytes = (byte[]) visitors.modifyClassBytes[i].invokeExact(sourceBytes);
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+            fusedStart = i + 1;
+        }
+        return visitFused(sourceBytes, visitors, fusedStart, visitorClasses.length);
+    }
+
+    private byte[] visitFused(byte[] sourceBytes, ThreadVisitors visitors, int start, int end) {
+        if (start >= end) {
+            return sourceBytes;
+        }
+        ClassReader classReader = new ClassReader(sourceBytes);
+        AopClassWriter classWriter = new AopClassWriter(ClassWriter.COMPUTE_FRAMES, classLoader, classHierarchy, isLenientFrames);
+        classReader.accept(chain(AgpCompat.getAsmApi(), classWriter, visitors.instances, start, end), ClassReader.EXPAND_FRAMES);
+        byte[] classBytes = classWriter.toByteArray();
+        visitors.isTypeResolved |= classWriter.isTypeResolved();
+        return classBytes;
+    }
+
+    private static ClassVisitor chain(int api, ClassVisitor next, Object[] visitors, int start, int end) {
+        ClassVisitor classVisitor = next;
+        for (int i = end - 1; i >= start; i--) {
+            classVisitor = ((IAopClassVisitorFactory) visitors[i]).createClassVisitor(api, classVisitor);
+        }
+        return classVisitor;
+    }
+
+    /**
+     * Whether every visitor is an {@link IAopClassVisitorFactory}, only then can the chain run
+     * inside a class pass owned by the host, like AGP's instrumentation pipeline.
+     */
+    public boolean isChainable() {
+        for (MethodHandle handle : modifyClassBytesHandles) {
+            if (handle != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chains the visitors of the calling thread in front of {@code next}, for a class pass the
+     * caller reads and writes itself. Frames are then up to the caller's writer.
+     *
+     * @throws IllegalStateException if a visitor only declares {@code modifyClassBytes}.
+     */
+    public ClassVisitor createClassVisitor(int api, ClassVisitor next) throws ReflectiveOperationException {
+        if (!isChainable()) {
+            throw new IllegalStateException("modifyClassBytes visitors need their own class pass");
+        }
+        return chain(api, next, getThreadVisitors().instances, 0, visitorClasses.length);
+    }
+
+    private ThreadVisitors getThreadVisitors() throws ReflectiveOperationException {
+        Thread thread = Thread.currentThread();
+        ThreadVisitors visitors = threadVisitors.get(thread);
+        if (visitors == null) {
+            visitors = new ThreadVisitors(visitorClasses.length);
+            for (int i = 0; i < visitorClasses.length; i++) {
+                Object instance = visitorClasses[i].getDeclaredConstructor().newInstance();
+                if (instance instanceof IAopVisitorLifecycle) {
+                    ((IAopVisitorLifecycle) instance).onTraceStart();
+                }
+                visitors.instances[i] = instance;
+                if (modifyClassBytesHandles[i] != null) {
+                    visitors.modifyClassBytes[i] = modifyClassBytesHandles[i].bindTo(instance);
+                }
+            }
+            threadVisitors.put(thread, visitors);
+        }
+        return visitors;
+    }
+
+    @Override
+    public void close() {
+        for (ThreadVisitors visitors : threadVisitors.values()) {
+            for (Object instance : visitors.instances) {
+                if (instance instanceof IAopVisitorLifecycle) {
+                    ((IAopVisitorLifecycle) instance).onTraceEnd();
+                }
+            }
+        }
+        threadVisitors.clear();
+    }
+
+    private static class ThreadVisitors {
+        final Object[] instances;
+        final MethodHandle[] modifyClassBytes;
+        boolean isTypeResolved;
+
+        ThreadVisitors(int size) {
+            instances = new Object[size];
+            modifyClassBytes = new MethodHandle[size];
+        }
+    }
+}
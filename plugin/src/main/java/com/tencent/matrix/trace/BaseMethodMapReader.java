@@ -0,0 +1,259 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.FileUtil;
+import com.tencent.matrix.javalib.util.Log;
+import com.tencent.matrix.trace.item.TraceMethod;
+import com.tencent.matrix.trace.retrace.MappingCollector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads the base method map ({@code id,access,class method desc} lines) into the collected
+ * methods, proguarding every method on the way so no retrace copy of the table is needed.
+ * <p>
+ * The parsed lines can be kept in a binary cache file, which is reused while the base method
+ * map keeps the same size and SHA-1. Times are not trusted, unpacked or copied maps keep them.
+ * </p>
+ */
+public class BaseMethodMapReader {
+
+    private static final String TAG = "Matrix.BaseMethodMapReader";
+    private static final int CACHE_MAGIC = 0x424d4d43; // BMMC
+    private static final int CACHE_VERSION = 2;
+
+    private final File baseMethodMapFile;
+    private final File cacheFile;
+    private String baseMethodMapHash;
+
+    /**
+     * @param cacheFile binary cache of the parsed map, or null to always parse the text map.
+     */
+    public BaseMethodMapReader(File baseMethodMapFile, File cacheFile) {
+        this.baseMethodMapFile = baseMethodMapFile;
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * @return the number of methods read.
+     */
+    public int read(MappingCollector mappingCollector, Map<String, TraceMethod> collectedMethodMap, AtomicInteger methodId) {
+        if (!baseMethodMapFile.isFile()) {
+            Log.w(TAG, "[read] not exist!%s", baseMethodMapFile.getAbsolutePath());
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        List<TraceMethod> methods = cacheFile == null ? null : readCache();
+        boolean isFromCache = methods != null;
+        if (methods == null) {
+            try {
+                methods = readText();
+            } catch (IOException e) {
+                Log.printErrStackTrace(TAG, e, "");
+                return 0;
+            }
+            if (cacheFile != null) {
+                writeCache(methods);
+            }
+        }
+
+        int maxId = methodId.get();
+        for (TraceMethod traceMethod : methods) {
+            if (maxId < traceMethod.id && traceMethod.id != TraceBuildConstants.METHOD_ID_DISPATCH) {
+                maxId = traceMethod.id;
+            }
+            proguard(traceMethod, mappingCollector);
+            collectedMethodMap.put(traceMethod.getMethodName(), traceMethod);
+        }
+        methodId.set(maxId);
+        Log.i(TAG, "[read] %s methods from %s, cache:%s cost:%sms", methods.size(), baseMethodMapFile.getName(),
+                isFromCache, System.currentTimeMillis() - start);
+        return methods.size();
+    }
+
+    /**
+     * Proguards a method read back from a method map.
+     */
+    static void proguard(TraceMethod traceMethod, MappingCollector mappingCollector) {
+        if (traceMethod.desc == null) {
+            // native lines carry no desc, only the class can be proguarded
+            traceMethod.className = mappingCollector.proguardClassName(traceMethod.className, traceMethod.className);
+        } else {
+            traceMethod.proguard(mappingCollector);
+        }
+    }
+
+    private List<TraceMethod> readText() throws IOException {
+        List<TraceMethod> methods = new ArrayList<>();
+        InputStream is = new BufferedInputStream(new FileInputStream(baseMethodMapFile), 64 * 1024);
+        is.mark(2);
+        boolean isGzip = is.read() == 0x1f && is.read() == 0x8b;
+        is.reset();
+        if (isGzip) {
+            // a method map written with isMethodMapGzip
+            is = new GZIPInputStream(is, 64 * 1024);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 64 * 1024);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith("#")) {
+                    Log.i(TAG, "[readText] comment %s", line);
+                    continue;
+                }
+                try {
+                    methods.add(parseLine(line));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "[readText] skip invalid line %s e:%s", line, e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return methods;
+    }
+
+    /**
+     * Parses {@code id,access,class method [desc]}, same as {@link TraceMethod#toString()} writes it.
+     */
+    private static TraceMethod parseLine(String line) {
+        int idEnd = line.indexOf(',');
+        int accessEnd = line.indexOf(',', idEnd + 1);
+        int classEnd = line.indexOf(' ', accessEnd + 1);
+        int nameEnd = line.indexOf(' ', classEnd + 1);
+        if (idEnd < 0 || accessEnd < 0 || classEnd < 0) {
+            throw new IllegalArgumentException("invalid base method line: " + line);
+        }
+        TraceMethod traceMethod = new TraceMethod();
+        traceMethod.id = Integer.parseInt(line.substring(0, idEnd));
+        traceMethod.accessFlag = Integer.parseInt(line.substring(idEnd + 1, accessEnd));
+        traceMethod.className = line.substring(accessEnd + 1, classEnd).replace('/', '.');
+        if (nameEnd < 0) {
+            traceMethod.methodName = line.substring(classEnd + 1);
+        } else {
+            traceMethod.methodName = line.substring(classEnd + 1, nameEnd);
+            int descEnd = line.indexOf(' ', nameEnd + 1);
+            traceMethod.desc = line.substring(nameEnd + 1, descEnd < 0 ? line.length() : descEnd).replace('/', '.');
+        }
+        return traceMethod;
+    }
+
+    private List<TraceMethod> readCache() {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 64 * 1024));
+            if (is.readInt() != CACHE_MAGIC || is.readInt() != CACHE_VERSION
+                    || is.readLong() != baseMethodMapFile.length() || !is.readUTF().equals(getBaseMethodMapHash())) {
+                return null;
+            }
+            String[] strings = new String[is.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = is.readUTF();
+            }
+            int count = is.readInt();
+            List<TraceMethod> methods = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                TraceMethod traceMethod = new TraceMethod();
+                traceMethod.id = is.readInt();
+                traceMethod.accessFlag = is.readInt();
+                traceMethod.className = strings[is.readInt()];
+                traceMethod.methodName = strings[is.readInt()];
+                int desc = is.readInt();
+                traceMethod.desc = desc < 0 ? null : strings[desc];
+                methods.add(traceMethod);
+            }
+            return methods;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "[readCache] can not read %s e:%s", cacheFile, e.toString());
+            return null;
+        } finally {
+            FileUtil.closeQuietly(is);
+        }
+    }
+
+    private void writeCache(List<TraceMethod> methods) {
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try {
+            cacheFile.getAbsoluteFile().getParentFile().mkdirs();
+            Map<String, Integer> stringIds = new HashMap<>();
+            List<String> strings = new ArrayList<>();
+            int[] refs = new int[methods.size() * 3];
+            for (int i = 0; i < methods.size(); i++) {
+                TraceMethod traceMethod = methods.get(i);
+                refs[i * 3] = stringId(traceMethod.className, stringIds, strings);
+                refs[i * 3 + 1] = stringId(traceMethod.methodName, stringIds, strings);
+                refs[i * 3 + 2] = stringId(traceMethod.desc, stringIds, strings);
+            }
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                os.writeInt(CACHE_MAGIC);
+                os.writeInt(CACHE_VERSION);
+                os.writeLong(baseMethodMapFile.length());
+                os.writeUTF(getBaseMethodMapHash());
+                os.writeInt(strings.size());
+                for (String string : strings) {
+                    os.writeUTF(string);
+                }
+                os.writeInt(methods.size());
+                for (int i = 0; i < methods.size(); i++) {
+                    os.writeInt(methods.get(i).id);
+                    os.writeInt(methods.get(i).accessFlag);
+                    os.writeInt(refs[i * 3]);
+                    os.writeInt(refs[i * 3 + 1]);
+                    os.writeInt(refs[i * 3 + 2]);
+                }
+            } finally {
+                os.close();
+            }
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.w(TAG, "[writeCache] can not write %s e:%s", cacheFile, e.toString());
+            tmp.delete();
+        }
+    }
+
+    private String getBaseMethodMapHash() throws IOException {
+        if (baseMethodMapHash == null) {
+            baseMethodMapHash = FileUtil.sha1(baseMethodMapFile);
+        }
+        return baseMethodMapHash;
+    }
+
+    private static int stringId(String value, Map<String, Integer> stringIds, List<String> strings) {
+        if (value == null) {
+            return -1;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        return id;
+    }
+}
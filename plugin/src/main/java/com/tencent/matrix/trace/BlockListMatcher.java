@@ -0,0 +1,103 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.trace.retrace.MappingCollector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Block list compiled once from the rules of {@link Configuration#parseBlockFile}.
+ * <p>
+ * {@code -keepclass} and {@code -keeppackage} rules are prefixes of the original dotted class
+ * name and live in a char trie, the raw class name is also checked against them as a set.
+ * {@code -keepglob} and {@code -keepregex} rules are matched on the original dotted class name.
+ * Decisions are cached per class, a matcher must always be used with the same {@link MappingCollector}.
+ * </p>
+ */
+public final class BlockListMatcher {
+
+    private final Set<String> exactSet;
+    private final Node root = new Node();
+    private final List<Pattern> patterns;
+    private final ConcurrentHashMap<String, Boolean> blockedCache = new ConcurrentHashMap<>();
+
+    public BlockListMatcher(Collection<String> prefixes, Collection<Pattern> patterns) {
+        this.exactSet = new HashSet<>(prefixes);
+        for (String prefix : prefixes) {
+            prefix = prefix.replace('/', '.');
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.child(prefix.charAt(i));
+            }
+            node.isEnd = true;
+        }
+        this.patterns = new ArrayList<>(patterns);
+    }
+
+    public boolean isBlocked(String clsName, MappingCollector mappingCollector) {
+        Boolean blocked = blockedCache.get(clsName);
+        if (blocked == null) {
+            blocked = match(clsName, mappingCollector);
+            blockedCache.put(clsName, blocked);
+        }
+        return blocked;
+    }
+
+    private boolean match(String clsName, MappingCollector mappingCollector) {
+        if (exactSet.contains(clsName)) {
+            return true;
+        }
+        String originalName = clsName;
+        if (null != mappingCollector) {
+            originalName = mappingCollector.originalClassName(clsName, clsName);
+        }
+        originalName = originalName.replace('/', '.');
+        if (matchPrefix(originalName)) {
+            return true;
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(originalName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchPrefix(String name) {
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.children == null ? null : node.children.get(name.charAt(i));
+            if (node == null) {
+                return false;
+            }
+            if (node.isEnd) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Node {
+        Map<Character, Node> children;
+        boolean isEnd;
+
+        Node child(char c) {
+            if (children == null) {
+                children = new HashMap<>(4);
+            }
+            Node node = children.get(c);
+            if (node == null) {
+                node = new Node();
+                children.put(c, node);
+            }
+            return node;
+        }
+    }
+}
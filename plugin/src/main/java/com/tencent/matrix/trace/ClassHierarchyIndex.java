@@ -0,0 +1,566 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.FileUtil;
+import com.tencent.matrix.javalib.util.Log;
+import com.tencent.matrix.trace.item.TraceMethod;
+import com.tencent.matrix.trace.retrace.MappingCollector;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class to super class and interfaces index of every collected class, kept across builds
+ * together with the classes each one references and the traced methods of each class and
+ * their ids.
+ * <p>
+ * Every class remembers the class file or jar it was collected from. Incremental builds load the
+ * index of the previous build, drop the classes of the changed and removed files and restore the
+ * rest, so hierarchy answers and the method map stay complete while only changed files are read.
+ * Methods are stored with their original names, the same as the method map, and proguarded again
+ * on restore.
+ * </p>
+ * <p>
+ * Reversed, the index tells which unchanged classes depend on a changed one, see
+ * {@link #getDependentFiles}.
+ * </p>
+ * Classes outside of the inputs, like the ones of android.jar, are read from the class loader on
+ * demand and never written.
+ */
+public class ClassHierarchyIndex {
+
+    private static final String TAG = "Matrix.ClassHierarchyIndex";
+    private static final int MAGIC = 0x4d4d4348; // MMCH
+    private static final int VERSION = 2;
+    private static final String OBJECT = "java/lang/Object";
+    private static final int CONSTANT_CLASS = 7;
+
+    private final ConcurrentHashMap<String, ClassEntry> classes = new ConcurrentHashMap<>();
+
+    /**
+     * @return the index written by {@link #write}, or null if there is none or it can not be read.
+     */
+    public static ClassHierarchyIndex read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                Log.i(TAG, "[read] unknown index format %s", file);
+                return null;
+            }
+            String[] strings = new String[is.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = is.readUTF();
+            }
+            ClassHierarchyIndex index = new ClassHierarchyIndex();
+            int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = strings[is.readInt()];
+                int access = is.readInt();
+                int superName = is.readInt();
+                String[] interfaces = new String[is.readInt()];
+                for (int j = 0; j < interfaces.length; j++) {
+                    interfaces[j] = strings[is.readInt()];
+                }
+                String[] references = new String[is.readInt()];
+                for (int j = 0; j < references.length; j++) {
+                    references[j] = strings[is.readInt()];
+                }
+                ClassEntry entry = new ClassEntry(access, superName < 0 ? null : strings[superName], interfaces, references,
+                        strings[is.readInt()]);
+                int methodCount = is.readInt();
+                for (int j = 0; j < methodCount; j++) {
+                    TraceMethod traceMethod = new TraceMethod();
+                    traceMethod.id = is.readInt();
+                    traceMethod.accessFlag = is.readInt();
+                    traceMethod.className = strings[is.readInt()];
+                    traceMethod.methodName = strings[is.readInt()];
+                    int desc = is.readInt();
+                    traceMethod.desc = desc < 0 ? null : strings[desc];
+                    entry.methods.add(traceMethod);
+                }
+                index.classes.put(name, entry);
+            }
+            Log.i(TAG, "[read] %s classes from %s cost:%sms", count, file, System.currentTimeMillis() - start);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "[read] can not read %s e:%s", file, e.toString());
+            return null;
+        } finally {
+            FileUtil.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Records a class collected from {@code source}, a class file or a jar. Replaces the entry of
+     * a previous build, the restored methods are kept if the class comes from the same file.
+     *
+     * @param references the classes it references, see {@link #getReferencedClasses}.
+     */
+    public void putClass(String name, int access, String superName, String[] interfaces, String[] references, String source) {
+        ClassEntry entry = new ClassEntry(access, superName, interfaces == null ? new String[0] : interfaces, references, source);
+        ClassEntry previous = classes.put(name, entry);
+        if (previous != null && source.equals(previous.source)) {
+            // a dependent read again, its methods were not collected a second time
+            entry.methods.addAll(previous.methods);
+        }
+    }
+
+    /**
+     * @return the internal names of the classes in the constant pool of {@code classReader}, array
+     * types are reduced to their element type.
+     */
+    public static String[] getReferencedClasses(ClassReader classReader) {
+        Set<String> references = new HashSet<>();
+        char[] buffer = new char[classReader.getMaxStringLength()];
+        for (int i = 1; i < classReader.getItemCount(); i++) {
+            int offset = classReader.getItem(i);
+            // the second slot of long and double constants has no offset
+            if (offset == 0 || classReader.b[offset - 1] != CONSTANT_CLASS) {
+                continue;
+            }
+            String name = classReader.readUTF8(offset, buffer);
+            if (name.startsWith("[")) {
+                int element = name.lastIndexOf('[') + 1;
+                if (name.charAt(element) != 'L') {
+                    continue;
+                }
+                name = name.substring(element + 1, name.length() - 1);
+            }
+            references.add(name);
+        }
+        references.remove(classReader.getClassName());
+        return references.toArray(new String[0]);
+    }
+
+    /**
+     * Records a method given an id in the method map, {@code className} is the internal name
+     * passed to {@link #putClass}.
+     */
+    public void addMethod(String className, TraceMethod traceMethod) {
+        ClassEntry entry = classes.get(className);
+        if (entry != null && entry.source != null) {
+            synchronized (entry.methods) {
+                entry.methods.add(traceMethod);
+            }
+        }
+    }
+
+    /**
+     * Drops the classes collected from {@code files}, or from below them for directories.
+     *
+     * @return the number of classes dropped.
+     */
+    public int invalidate(Collection<File> files) {
+        Set<String> paths = new HashSet<>();
+        List<String> dirPrefixes = new ArrayList<>();
+        for (File file : files) {
+            paths.add(file.getAbsolutePath());
+            if (file.isDirectory()) {
+                dirPrefixes.add(file.getAbsolutePath() + File.separator);
+            }
+        }
+        int count = 0;
+        Iterator<ClassEntry> iterator = classes.values().iterator();
+        while (iterator.hasNext()) {
+            String source = iterator.next().source;
+            if (source == null || paths.contains(source) || startsWithAny(source, dirPrefixes)) {
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean startsWithAny(String source, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (source.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks the index backwards from the classes of {@code changedFiles}: their subclasses and
+     * implementations, transitively, and the classes that reference any of them directly. Only
+     * class files are returned, jars are read again in every build.
+     *
+     * @return the existing class files of the dependent classes, without {@code changedFiles}.
+     */
+    public Set<File> getDependentFiles(Collection<File> changedFiles) {
+        Set<String> changedSources = new HashSet<>();
+        for (File file : changedFiles) {
+            changedSources.add(file.getAbsolutePath());
+        }
+        Set<String> affected = new HashSet<>();
+        Map<String, List<String>> subtypes = new HashMap<>();
+        Map<String, List<String>> referrers = new HashMap<>();
+        for (Map.Entry<String, ClassEntry> classEntry : classes.entrySet()) {
+            String name = classEntry.getKey();
+            ClassEntry entry = classEntry.getValue();
+            if (entry.source == null) {
+                continue;
+            }
+            if (changedSources.contains(entry.source)) {
+                affected.add(name);
+            }
+            if (entry.superName != null) {
+                addEdge(subtypes, entry.superName, name);
+            }
+            for (String interfaceName : entry.interfaces) {
+                addEdge(subtypes, interfaceName, name);
+            }
+            for (String reference : entry.references) {
+                addEdge(referrers, reference, name);
+            }
+        }
+        if (affected.isEmpty()) {
+            return new HashSet<>();
+        }
+
+        Deque<String> queue = new ArrayDeque<>(affected);
+        while (!queue.isEmpty()) {
+            List<String> names = subtypes.get(queue.poll());
+            if (names != null) {
+                for (String name : names) {
+                    if (affected.add(name)) {
+                        queue.add(name);
+                    }
+                }
+            }
+        }
+        for (String name : new ArrayList<>(affected)) {
+            List<String> names = referrers.get(name);
+            if (names != null) {
+                affected.addAll(names);
+            }
+        }
+
+        Set<File> dependentFiles = new HashSet<>();
+        for (String name : affected) {
+            String source = classes.get(name).source;
+            if (!changedSources.contains(source) && source.endsWith(".class")) {
+                File file = new File(source);
+                if (file.isFile()) {
+                    dependentFiles.add(file);
+                }
+            }
+        }
+        return dependentFiles;
+    }
+
+    private static void addEdge(Map<String, List<String>> edges, String from, String to) {
+        List<String> names = edges.get(from);
+        if (names == null) {
+            names = new ArrayList<>();
+            edges.put(from, names);
+        }
+        names.add(to);
+    }
+
+    /**
+     * Puts the restored classes and methods into the collected maps of this build. Methods are
+     * proguarded with {@code mappingCollector} and keep their id, the base method map wins over
+     * them and {@code methodId} is moved past the highest restored id.
+     *
+     * @return the number of methods restored.
+     */
+    public int restore(MappingCollector mappingCollector, Map<String, TraceMethod> collectedMethodMap,
+                       Map<String, String> collectedClassExtendMap, AtomicInteger methodId) {
+        int count = 0;
+        int maxId = methodId.get();
+        for (Map.Entry<String, ClassEntry> classEntry : classes.entrySet()) {
+            ClassEntry entry = classEntry.getValue();
+            if (entry.superName != null) {
+                collectedClassExtendMap.put(classEntry.getKey(), entry.superName);
+            }
+            Iterator<TraceMethod> iterator = entry.methods.iterator();
+            while (iterator.hasNext()) {
+                TraceMethod traceMethod = iterator.next();
+                BaseMethodMapReader.proguard(traceMethod, mappingCollector);
+                String key = traceMethod.getMethodName();
+                if (collectedMethodMap.containsKey(key)) {
+                    iterator.remove();
+                    continue;
+                }
+                collectedMethodMap.put(key, traceMethod);
+                if (maxId < traceMethod.id && traceMethod.id != TraceBuildConstants.METHOD_ID_DISPATCH) {
+                    maxId = traceMethod.id;
+                }
+                count++;
+            }
+        }
+        methodId.set(maxId);
+        return count;
+    }
+
+    /**
+     * Writes the classes collected from the inputs. Call it once the method maps are saved, so
+     * the methods carry their final ids and original names.
+     */
+    public void write(File file) {
+        long start = System.currentTimeMillis();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            Map<String, Integer> stringIds = new HashMap<>();
+            List<String> strings = new ArrayList<>();
+            List<Map.Entry<String, ClassEntry>> entries = new ArrayList<>();
+            for (Map.Entry<String, ClassEntry> classEntry : classes.entrySet()) {
+                ClassEntry entry = classEntry.getValue();
+                if (entry.source == null) {
+                    continue;
+                }
+                entries.add(classEntry);
+                stringId(classEntry.getKey(), stringIds, strings);
+                stringId(entry.superName, stringIds, strings);
+                for (String name : entry.interfaces) {
+                    stringId(name, stringIds, strings);
+                }
+                for (String name : entry.references) {
+                    stringId(name, stringIds, strings);
+                }
+                stringId(entry.source, stringIds, strings);
+                for (TraceMethod traceMethod : entry.methods) {
+                    stringId(traceMethod.className, stringIds, strings);
+                    stringId(traceMethod.methodName, stringIds, strings);
+                    stringId(traceMethod.desc, stringIds, strings);
+                }
+            }
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                os.writeInt(strings.size());
+                for (String string : strings) {
+                    os.writeUTF(string);
+                }
+                os.writeInt(entries.size());
+                for (Map.Entry<String, ClassEntry> classEntry : entries) {
+                    ClassEntry entry = classEntry.getValue();
+                    os.writeInt(stringIds.get(classEntry.getKey()));
+                    os.writeInt(entry.access);
+                    os.writeInt(entry.superName == null ? -1 : stringIds.get(entry.superName));
+                    os.writeInt(entry.interfaces.length);
+                    for (String name : entry.interfaces) {
+                        os.writeInt(stringIds.get(name));
+                    }
+                    os.writeInt(entry.references.length);
+                    for (String name : entry.references) {
+                        os.writeInt(stringIds.get(name));
+                    }
+                    os.writeInt(stringIds.get(entry.source));
+                    os.writeInt(entry.methods.size());
+                    for (TraceMethod traceMethod : entry.methods) {
+                        os.writeInt(traceMethod.id);
+                        os.writeInt(traceMethod.accessFlag);
+                        os.writeInt(stringIds.get(traceMethod.className));
+                        os.writeInt(stringIds.get(traceMethod.methodName));
+                        os.writeInt(traceMethod.desc == null ? -1 : stringIds.get(traceMethod.desc));
+                    }
+                }
+            } finally {
+                os.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Log.i(TAG, "[write] %s classes to %s cost:%sms", entries.size(), file, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            Log.w(TAG, "[write] can not write %s e:%s", file, e.toString());
+            tmp.delete();
+        }
+    }
+
+    private static void stringId(String value, Map<String, Integer> stringIds, List<String> strings) {
+        if (value != null && !stringIds.containsKey(value)) {
+            stringIds.put(value, strings.size());
+            strings.add(value);
+        }
+    }
+
+    /**
+     * Same answer as {@link org.objectweb.asm.ClassWriter#getCommonSuperClass}, without loading
+     * any class.
+     *
+     * @return null if a class of the hierarchy is neither in the index nor in {@code classLoader}.
+     */
+    public String getCommonSuperClass(String type1, String type2, ClassLoader classLoader) {
+        ClassEntry entry1 = resolve(type1, classLoader);
+        ClassEntry entry2 = resolve(type2, classLoader);
+        if (entry1 == null || entry2 == null) {
+            return null;
+        }
+        Boolean isAssignable = isAssignableFrom(type1, type2, classLoader);
+        if (isAssignable == null) {
+            return null;
+        } else if (isAssignable) {
+            return type1;
+        }
+        isAssignable = isAssignableFrom(type2, type1, classLoader);
+        if (isAssignable == null) {
+            return null;
+        } else if (isAssignable) {
+            return type2;
+        }
+        if (entry1.isInterface() || entry2.isInterface()) {
+            return OBJECT;
+        }
+        String type = type1;
+        do {
+            ClassEntry entry = resolve(type, classLoader);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.superName == null) {
+                return OBJECT;
+            }
+            type = entry.superName;
+            isAssignable = isAssignableFrom(type, type2, classLoader);
+            if (isAssignable == null) {
+                return null;
+            }
+        } while (!isAssignable);
+        return type;
+    }
+
+    /**
+     * @return the super classes and interfaces of a class with {@code superName} and {@code interfaces},
+     * breadth first in declaration order. Types neither in the index nor in {@code classLoader} are
+     * listed without their own supertypes.
+     */
+    public List<String> getSupertypes(String superName, String[] interfaces, ClassLoader classLoader) {
+        List<String> supertypes = new ArrayList<>();
+        Deque<String> queue = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        if (superName != null) {
+            queue.add(superName);
+        }
+        if (interfaces != null) {
+            queue.addAll(Arrays.asList(interfaces));
+        }
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            if (!visited.add(name)) {
+                continue;
+            }
+            supertypes.add(name);
+            ClassEntry entry = OBJECT.equals(name) ? null : resolve(name, classLoader);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.superName != null) {
+                queue.add(entry.superName);
+            }
+            queue.addAll(Arrays.asList(entry.interfaces));
+        }
+        return supertypes;
+    }
+
+    /**
+     * @return whether {@code type} is {@code superType} or one of its subtypes, null if that can
+     * not be told.
+     */
+    private Boolean isAssignableFrom(String superType, String type, ClassLoader classLoader) {
+        Deque<String> queue = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        queue.add(type);
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            if (name.equals(superType)) {
+                return true;
+            }
+            if (!visited.add(name) || OBJECT.equals(name)) {
+                continue;
+            }
+            ClassEntry entry = resolve(name, classLoader);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.superName != null) {
+                queue.add(entry.superName);
+            }
+            for (String interfaceName : entry.interfaces) {
+                queue.add(interfaceName);
+            }
+        }
+        return false;
+    }
+
+    private ClassEntry resolve(String name, ClassLoader classLoader) {
+        ClassEntry entry = classes.get(name);
+        if (entry != null || classLoader == null) {
+            return entry;
+        }
+        InputStream is = classLoader.getResourceAsStream(name + ".class");
+        if (is == null) {
+            return null;
+        }
+        try {
+            ClassReader classReader = new ClassReader(is);
+            entry = new ClassEntry(classReader.getAccess(), classReader.getSuperName(), classReader.getInterfaces(), new String[0], null);
+            ClassEntry previous = classes.putIfAbsent(name, entry);
+            return previous == null ? entry : previous;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "[resolve] can not read %s e:%s", name, e.toString());
+            return null;
+        } finally {
+            FileUtil.closeQuietly(is);
+        }
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    private static final class ClassEntry {
+        final int access;
+        final String superName;
+        final String[] interfaces;
+        final String[] references;
+        /**
+         * Path of the class file or jar, null for classes read from the class loader.
+         */
+        final String source;
+        final List<TraceMethod> methods = new ArrayList<>();
+
+        ClassEntry(int access, String superName, String[] interfaces, String[] references, String source) {
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.references = references;
+            this.source = source;
+        }
+
+        boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+}
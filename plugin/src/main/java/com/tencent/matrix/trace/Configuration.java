@@ -4,7 +4,10 @@ import com.tencent.matrix.trace.retrace.MappingCollector;
 import com.tencent.matrix.javalib.util.FileUtil;
 import com.tencent.matrix.javalib.util.Util;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
 
 public class Configuration {
 
@@ -17,6 +20,8 @@ public class Configuration {
     public String traceClassOut;
     public boolean skipCheckClass;
     public HashSet<String> blockSet = new HashSet<>();
+    public List<Pattern> blockPatterns = new ArrayList<>();
+    private BlockListMatcher blockListMatcher;
 
 
     public Configuration() {
@@ -58,10 +63,27 @@ public class Configuration {
                 } else if (block.startsWith("-keeppackage ")) {
                     block = block.replace("-keeppackage ", "");
                     blockSet.add(processor.proguardPackageName(block, block));
+                } else if (block.startsWith("-keepglob ")) {
+                    block = block.replace("-keepglob ", "");
+                    blockPatterns.add(Pattern.compile(Util.globToRegexp(block.trim())));
+                } else if (block.startsWith("-keepregex ")) {
+                    block = block.replace("-keepregex ", "");
+                    blockPatterns.add(Pattern.compile(block.trim()));
                 }
             }
         }
-        return blockSet.size();
+        blockListMatcher = null;
+        return blockSet.size() + blockPatterns.size();
+    }
+
+    /**
+     * @return the matcher compiled from {@link #blockSet} and {@link #blockPatterns}.
+     */
+    public synchronized BlockListMatcher getBlockListMatcher() {
+        if (blockListMatcher == null) {
+            blockListMatcher = new BlockListMatcher(blockSet, blockPatterns);
+        }
+        return blockListMatcher;
     }
 
     @Override
@@ -1,21 +1,23 @@
 package com.tencent.matrix.trace;
 
 import com.tencent.matrix.plugin.compat.AgpCompat;
+import com.tencent.matrix.plugin.MatrixPlugin;
+import com.tencent.matrix.trace.item.BinaryMethodMap;
 import com.tencent.matrix.trace.item.TraceMethod;
 import com.tencent.matrix.trace.retrace.MappingCollector;
 import com.tencent.matrix.javalib.util.Log;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.MethodNode;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
@@ -24,21 +26,27 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipFile;
 
 public class MethodCollector {
 
     private static final String TAG = "MethodCollector";
+    /**
+     * Collection only looks at instructions, debug info and frames are never needed.
+     */
+    private static final int COLLECT_PARSING_OPTIONS = ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
 
     private final ExecutorService executor;
     private final MappingCollector mappingCollector;
@@ -52,10 +60,20 @@ public class MethodCollector {
     private final AtomicInteger methodId;
     private final AtomicInteger ignoreCount = new AtomicInteger();
     private final AtomicInteger incrementCount = new AtomicInteger();
-
+    private final List<Future<?>> saveFutures = new ArrayList<>();
+    private final boolean isStableMethodId = MatrixPlugin.mMatrixExtension.isStableMethodId;
+    private final ConcurrentLinkedQueue<TraceMethod> unassignedMethods = new ConcurrentLinkedQueue<>();
+    private final ClassHierarchyIndex classHierarchy;
+
+    /**
+     * @param classHierarchy if not null, collected classes and traced methods are recorded in it
+     *                       with the file they come from.
+     */
     public MethodCollector(ExecutorService executor, MappingCollector mappingCollector, AtomicInteger methodId,
-                           Configuration configuration, ConcurrentHashMap<String, TraceMethod> collectedMethodMap) {
+                           Configuration configuration, ConcurrentHashMap<String, TraceMethod> collectedMethodMap,
+                           ClassHierarchyIndex classHierarchy) {
         this.executor = executor;
+        this.classHierarchy = classHierarchy;
         this.mappingCollector = mappingCollector;
         this.configuration = configuration;
         this.methodId = methodId;
@@ -71,7 +89,7 @@ public class MethodCollector {
     }
 
     public void collect(Set<File> srcFolderList, Set<File> dependencyJarList) throws ExecutionException, InterruptedException {
-        List<Future> futures = new LinkedList<>();
+        List<TraceScheduler.Job> jobs = new ArrayList<>();
 
         for (File srcFile : srcFolderList) {
             ArrayList<File> classFileList = new ArrayList<>();
@@ -82,38 +100,89 @@ public class MethodCollector {
             }
 
             for (File classFile : classFileList) {
-                futures.add(executor.submit(new CollectSrcTask(classFile)));
+                jobs.add(new TraceScheduler.Job(classFile.length(), new CollectSrcTask(classFile)));
             }
         }
 
         for (File jarFile : dependencyJarList) {
-            futures.add(executor.submit(new CollectJarTask(jarFile)));
+            jobs.add(new TraceScheduler.Job(jarFile.length(), new CollectJarTask(jarFile)));
         }
 
-        for (Future future : futures) {
+        List<Future<?>> futures = TraceScheduler.submitLongestFirst(executor, jobs);
+
+        for (Future<?> future : futures) {
             future.get();
         }
         futures.clear();
+    }
 
-        futures.add(executor.submit(new Runnable() {
+    /**
+     * Collects the methods of one class, for callers which already hold its bytes,
+     * like {@link MethodTracer} when collection is fused into the trace pass.
+     *
+     * @param source path of the class file or jar the class comes from.
+     */
+    public void collectClass(byte[] classBytes, String source) {
+        collectClass(new ClassReader(classBytes), source);
+    }
+
+    private void collectClass(ClassReader classReader, String source) {
+        String[] references = classHierarchy == null ? null : ClassHierarchyIndex.getReferencedClasses(classReader);
+        classReader.accept(new TraceClassAdapter(AgpCompat.getAsmApi(), source, references), COLLECT_PARSING_OPTIONS);
+    }
+
+    /**
+     * Starts writing the method reports in the background. Nothing in the trace step reads them,
+     * so they can overlap with {@link MethodTracer#trace}, {@link #awaitSavedCollectedMethods()}
+     * must be called before the transform ends.
+     */
+    public synchronized void startSaveCollectedMethods() {
+        assignMethodIds();
+        if (MatrixPlugin.mMatrixExtension.isIgnoreMethodMap) {
+            saveFutures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    saveIgnoreCollectedMethod(mappingCollector);
+                }
+            }));
+        }
+
+        saveFutures.add(executor.submit(new Runnable() {
             @Override
             public void run() {
-                saveIgnoreCollectedMethod(mappingCollector);
+                saveCollectedMethod(mappingCollector);
             }
         }));
+    }
 
-        futures.add(executor.submit(new Runnable() {
+    /**
+     * Gives ids to the methods collected since the last call, in the order of their method name
+     * and after the ids of the base method map, so the same classes always get the same ids no
+     * matter which thread collected them first.
+     */
+    public synchronized void assignMethodIds() {
+        if (unassignedMethods.isEmpty()) {
+            return;
+        }
+        List<TraceMethod> methods = new ArrayList<>(unassignedMethods);
+        unassignedMethods.clear();
+        Collections.sort(methods, new Comparator<TraceMethod>() {
             @Override
-            public void run() {
-                saveCollectedMethod(mappingCollector);
+            public int compare(TraceMethod o1, TraceMethod o2) {
+                return o1.getMethodName().compareTo(o2.getMethodName());
             }
-        }));
+        });
+        for (TraceMethod traceMethod : methods) {
+            traceMethod.id = methodId.incrementAndGet();
+        }
+        Log.i(TAG, "[assignMethodIds] size:%s last id:%s", methods.size(), methodId.get());
+    }
 
-        for (Future future : futures) {
+    public synchronized void awaitSavedCollectedMethods() throws ExecutionException, InterruptedException {
+        for (Future<?> future : saveFutures) {
             future.get();
         }
-        futures.clear();
-
+        saveFutures.clear();
     }
 
 
@@ -130,10 +199,7 @@ public class MethodCollector {
             InputStream is = null;
             try {
                 is = new FileInputStream(classFile);
-                ClassReader classReader = new ClassReader(is);
-                ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-                ClassVisitor visitor = new TraceClassAdapter(AgpCompat.getAsmApi(), classWriter);
-                classReader.accept(visitor, 0);
+                collectClass(new ClassReader(is), classFile.getAbsolutePath());
 
             } catch (Exception e) {
                 e.printStackTrace();
@@ -160,18 +226,25 @@ public class MethodCollector {
 
             try {
                 zipFile = new ZipFile(fromJar);
+                List<ZipEntry> classEntries = new ArrayList<>();
                 Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
                 while (enumeration.hasMoreElements()) {
                     ZipEntry zipEntry = enumeration.nextElement();
-                    String zipEntryName = zipEntry.getName();
-                    if (isNeedTraceFile(zipEntryName)) {
-                        InputStream inputStream = zipFile.getInputStream(zipEntry);
-                        ClassReader classReader = new ClassReader(inputStream);
-                        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-                        ClassVisitor visitor = new TraceClassAdapter(AgpCompat.getAsmApi(), classWriter);
-                        classReader.accept(visitor, 0);
+                    if (isNeedTraceFile(zipEntry.getName())) {
+                        classEntries.add(zipEntry);
                     }
                 }
+                if (fromJar.length() >= MethodTracer.PARALLEL_JAR_SIZE && classEntries.size() > MethodTracer.JAR_ENTRY_BATCH_SIZE
+                        && ForkJoinTask.inForkJoinPool()) {
+                    List<CollectJarBatchTask> batches = new ArrayList<>();
+                    for (int start = 0; start < classEntries.size(); start += MethodTracer.JAR_ENTRY_BATCH_SIZE) {
+                        int end = Math.min(start + MethodTracer.JAR_ENTRY_BATCH_SIZE, classEntries.size());
+                        batches.add(new CollectJarBatchTask(zipFile, classEntries.subList(start, end)));
+                    }
+                    ForkJoinTask.invokeAll(batches);
+                } else {
+                    collectEntries(zipFile, classEntries);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
@@ -185,6 +258,43 @@ public class MethodCollector {
     }
 
 
+    private void collectEntries(ZipFile zipFile, List<ZipEntry> classEntries) throws IOException {
+        for (ZipEntry zipEntry : classEntries) {
+            InputStream inputStream = zipFile.getInputStream(zipEntry);
+            try {
+                collectClass(new ClassReader(inputStream), new File(zipFile.getName()).getAbsolutePath());
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Collects a slice of the class entries of a large jar.
+     */
+    class CollectJarBatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+
+        private final ZipFile zipFile;
+        private final List<ZipEntry> classEntries;
+
+        CollectJarBatchTask(ZipFile zipFile, List<ZipEntry> classEntries) {
+            this.zipFile = zipFile;
+            this.classEntries = classEntries;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                collectEntries(zipFile, classEntries);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
     private void saveIgnoreCollectedMethod(MappingCollector mappingCollector) {
 
         File methodMapFile = new File(configuration.ignoreMethodMapFilePath);
@@ -198,18 +308,17 @@ public class MethodCollector {
         Collections.sort(ignoreMethodList, new Comparator<TraceMethod>() {
             @Override
             public int compare(TraceMethod o1, TraceMethod o2) {
-                return o1.className.compareTo(o2.className);
+                int result = o1.className.compareTo(o2.className);
+                return result != 0 ? result : o1.getMethodName().compareTo(o2.getMethodName());
             }
         });
 
         PrintWriter pw = null;
         try {
-            FileOutputStream fileOutputStream = new FileOutputStream(methodMapFile, false);
-            Writer w = new OutputStreamWriter(fileOutputStream, "UTF-8");
-            pw = new PrintWriter(w);
+            pw = new PrintWriter(openReport(methodMapFile));
             pw.println("ignore methods:");
+            revertAll(ignoreMethodList, mappingCollector);
             for (TraceMethod traceMethod : ignoreMethodList) {
-                traceMethod.revert(mappingCollector);
                 pw.println(traceMethod.toIgnoreString());
             }
         } catch (Exception e) {
@@ -246,13 +355,21 @@ public class MethodCollector {
             }
         });
 
+        revertAll(methodList, mappingCollector);
+        ForkJoinTask<?> binaryTask = null;
+        if (MatrixPlugin.mMatrixExtension.isBinaryMethodMap) {
+            binaryTask = new SaveBinaryMethodMapTask(getBinaryMethodMapFile(methodMapFile), methodList);
+            if (ForkJoinTask.inForkJoinPool()) {
+                binaryTask.fork();
+            } else {
+                binaryTask.invoke();
+            }
+        }
+
         PrintWriter pw = null;
         try {
-            FileOutputStream fileOutputStream = new FileOutputStream(methodMapFile, false);
-            Writer w = new OutputStreamWriter(fileOutputStream, "UTF-8");
-            pw = new PrintWriter(w);
+            pw = new PrintWriter(openReport(methodMapFile));
             for (TraceMethod traceMethod : methodList) {
-                traceMethod.revert(mappingCollector);
                 pw.println(traceMethod.toString());
             }
         } catch (Exception e) {
@@ -264,15 +381,117 @@ public class MethodCollector {
                 pw.close();
             }
         }
+        if (binaryTask != null) {
+            binaryTask.join();
+        }
+    }
+
+    /**
+     * Opens a report for writing, gzipped to {@code <file>.gz} when {@code isMethodMapGzip} is on.
+     * The report of the other format is deleted so that a stale one is never picked up.
+     */
+    private static Writer openReport(File file) throws IOException {
+        File gzipFile = new File(file.getPath() + ".gz");
+        if (MatrixPlugin.mMatrixExtension.isMethodMapGzip) {
+            file.delete();
+            return new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(gzipFile, false), 64 * 1024), "UTF-8");
+        }
+        gzipFile.delete();
+        return new OutputStreamWriter(new FileOutputStream(file, false), "UTF-8");
+    }
+
+    /**
+     * methodMapping.txt -> methodMapping.bin
+     */
+    static File getBinaryMethodMapFile(File methodMapFile) {
+        String name = methodMapFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(methodMapFile.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".bin");
+    }
+
+    /**
+     * Reverts {@code methods} back to their original names, in parallel slices when running in
+     * a fork join pool. The result is shared by the text and binary method maps.
+     */
+    private static void revertAll(List<TraceMethod> methods, MappingCollector mappingCollector) {
+        RevertTask task = new RevertTask(methods, mappingCollector);
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.fork().join();
+        } else {
+            task.compute();
+        }
+    }
+
+    private static class RevertTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+
+        private static final int THRESHOLD = 4096;
+
+        private final List<TraceMethod> methods;
+        private final MappingCollector mappingCollector;
+
+        RevertTask(List<TraceMethod> methods, MappingCollector mappingCollector) {
+            this.methods = methods;
+            this.mappingCollector = mappingCollector;
+        }
+
+        @Override
+        protected void compute() {
+            if (methods.size() <= THRESHOLD || !ForkJoinTask.inForkJoinPool()) {
+                for (TraceMethod traceMethod : methods) {
+                    traceMethod.revert(mappingCollector);
+                }
+                return;
+            }
+            int middle = methods.size() / 2;
+            invokeAll(new RevertTask(methods.subList(0, middle), mappingCollector),
+                    new RevertTask(methods.subList(middle, methods.size()), mappingCollector));
+        }
+    }
+
+    private static class SaveBinaryMethodMapTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+
+        private final File file;
+        private final List<TraceMethod> methods;
+
+        SaveBinaryMethodMapTask(File file, List<TraceMethod> methods) {
+            this.file = file;
+            this.methods = methods;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.currentTimeMillis();
+            try {
+                List<BinaryMethodMap.Method> records = new ArrayList<>(methods.size());
+                for (TraceMethod traceMethod : methods) {
+                    records.add(new BinaryMethodMap.Method(traceMethod.id, traceMethod.accessFlag, traceMethod.className,
+                            traceMethod.methodName, traceMethod.desc));
+                }
+                BinaryMethodMap.write(file, records);
+                Log.i(TAG, "[saveBinaryMethodMap] size:%s path:%s cost:%sms", methods.size(), file.getAbsolutePath(),
+                        System.currentTimeMillis() - start);
+            } catch (IOException e) {
+                Log.e(TAG, "write binary method map Exception:%s", e.getMessage());
+                e.printStackTrace();
+            }
+        }
     }
 
     private class TraceClassAdapter extends ClassVisitor {
+        private final String source;
+        private final String[] references;
         private String className;
         private boolean isABSClass = false;
         private boolean hasWindowFocusMethod = false;
 
-        TraceClassAdapter(int i, ClassVisitor classVisitor) {
-            super(i, classVisitor);
+        TraceClassAdapter(int i, String source, String[] references) {
+            super(i);
+            this.source = source;
+            this.references = references;
         }
 
         @Override
@@ -283,6 +502,9 @@ public class MethodCollector {
                 this.isABSClass = true;
             }
             collectedClassExtendMap.put(className, superName);
+            if (classHierarchy != null) {
+                classHierarchy.putClass(name, access, superName, interfaces, references, source);
+            }
         }
 
         @Override
@@ -294,119 +516,171 @@ public class MethodCollector {
                 if (!hasWindowFocusMethod) {
                     hasWindowFocusMethod = isWindowFocusChangeMethod(name, desc);
                 }
-                return new CollectMethodNode(className, access, name, desc, signature, exceptions);
+                return new CollectMethodVisitor(className, access, name, desc);
             }
         }
     }
 
-    private class CollectMethodNode extends MethodNode {
-        private String className;
-        private boolean isConstructor;
+    /**
+     * Classifies a method while its instructions stream by, instead of keeping them in a
+     * {@link org.objectweb.asm.tree.MethodNode} and walking the list once per filter.
+     */
+    private class CollectMethodVisitor extends MethodVisitor {
+        private final String className;
+        private final int access;
+        private final String name;
+        private final String desc;
+        private final boolean isConstructor;
+
+        private boolean isEmptyMethod = true;
+        private boolean isGetSetMethod = true;
+        private boolean isSingleMethod = true;
+        private int invokeSpecialCount;
+
+        CollectMethodVisitor(String className, int access, String name, String desc) {
+            super(AgpCompat.getAsmApi());
+            this.className = className;
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.isConstructor = "<init>".equals(name);
+        }
 
+        private void onInsn(int opcode) {
+            isEmptyMethod = false;
+            if (Opcodes.INVOKEVIRTUAL <= opcode && opcode <= Opcodes.INVOKEDYNAMIC) {
+                isSingleMethod = false;
+            }
+            if (isGetSetMethod && !isGetSetOpcode(opcode)) {
+                if (isConstructor && opcode == Opcodes.INVOKESPECIAL) {
+                    invokeSpecialCount++;
+                    isGetSetMethod = invokeSpecialCount <= 1;
+                } else {
+                    isGetSetMethod = false;
+                }
+            }
+        }
 
-        CollectMethodNode(String className, int access, String name, String desc,
-                          String signature, String[] exceptions) {
-            super(AgpCompat.getAsmApi(), access, name, desc, signature, exceptions);
-            this.className = className;
+        private boolean isGetSetOpcode(int opcode) {
+            switch (opcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTFIELD:
+                case Opcodes.PUTSTATIC:
+                case Opcodes.RETURN:
+                case Opcodes.ARETURN:
+                case Opcodes.DRETURN:
+                case Opcodes.FRETURN:
+                case Opcodes.LRETURN:
+                case Opcodes.IRETURN:
+                    return true;
+                default:
+                    // loads, constants and array loads
+                    return opcode <= Opcodes.SALOAD;
+            }
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            onInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            onInsn(opcode);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            onInsn(opcode);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            onInsn(opcode);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            onInsn(opcode);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            onInsn(opcode);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            onInsn(Opcodes.INVOKEDYNAMIC);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            onInsn(opcode);
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            onInsn(Opcodes.LDC);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            onInsn(Opcodes.IINC);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            onInsn(Opcodes.TABLESWITCH);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            onInsn(Opcodes.LOOKUPSWITCH);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            onInsn(Opcodes.MULTIANEWARRAY);
         }
 
         @Override
         public void visitEnd() {
-            super.visitEnd();
             TraceMethod traceMethod = TraceMethod.create(0, access, className, name, desc);
 
-            if ("<init>".equals(name)) {
-                isConstructor = true;
-            }
-
             boolean isNeedTrace = isNeedTrace(configuration, traceMethod.className, mappingCollector);
             // filter simple methods
-            if ((isEmptyMethod() || isGetSetMethod() || isSingleMethod())
+            if ((isEmptyMethod || isGetSetMethod || isSingleMethod)
                     && isNeedTrace) {
                 ignoreCount.incrementAndGet();
                 collectedIgnoreMethodMap.put(traceMethod.getMethodName(), traceMethod);
                 return;
             }
 
-            if (isNeedTrace && !collectedMethodMap.containsKey(traceMethod.getMethodName())) {
+            if (isNeedTrace && isStableMethodId) {
+                // the id is given by assignMethodIds once every class is collected
+                if (collectedMethodMap.putIfAbsent(traceMethod.getMethodName(), traceMethod) == null) {
+                    unassignedMethods.add(traceMethod);
+                    incrementCount.incrementAndGet();
+                    addToClassHierarchy(className, traceMethod);
+                }
+            } else if (isNeedTrace && !collectedMethodMap.containsKey(traceMethod.getMethodName())) {
                 traceMethod.id = methodId.incrementAndGet();
                 collectedMethodMap.put(traceMethod.getMethodName(), traceMethod);
                 incrementCount.incrementAndGet();
+                addToClassHierarchy(className, traceMethod);
             } else if (!isNeedTrace && !collectedIgnoreMethodMap.containsKey(traceMethod.className)) {
                 ignoreCount.incrementAndGet();
                 collectedIgnoreMethodMap.put(traceMethod.getMethodName(), traceMethod);
             }
-
-        }
-
-        private boolean isGetSetMethod() {
-            int ignoreCount = 0;
-            ListIterator<AbstractInsnNode> iterator = instructions.iterator();
-            while (iterator.hasNext()) {
-                AbstractInsnNode insnNode = iterator.next();
-                int opcode = insnNode.getOpcode();
-                if (-1 == opcode) {
-                    continue;
-                }
-                if (opcode != Opcodes.GETFIELD
-                        && opcode != Opcodes.GETSTATIC
-                        && opcode != Opcodes.H_GETFIELD
-                        && opcode != Opcodes.H_GETSTATIC
-
-                        && opcode != Opcodes.RETURN
-                        && opcode != Opcodes.ARETURN
-                        && opcode != Opcodes.DRETURN
-                        && opcode != Opcodes.FRETURN
-                        && opcode != Opcodes.LRETURN
-                        && opcode != Opcodes.IRETURN
-
-                        && opcode != Opcodes.PUTFIELD
-                        && opcode != Opcodes.PUTSTATIC
-                        && opcode != Opcodes.H_PUTFIELD
-                        && opcode != Opcodes.H_PUTSTATIC
-                        && opcode > Opcodes.SALOAD) {
-                    if (isConstructor && opcode == Opcodes.INVOKESPECIAL) {
-                        ignoreCount++;
-                        if (ignoreCount > 1) {
-                            return false;
-                        }
-                        continue;
-                    }
-                    return false;
-                }
-            }
-            return true;
-        }
-
-        private boolean isSingleMethod() {
-            ListIterator<AbstractInsnNode> iterator = instructions.iterator();
-            while (iterator.hasNext()) {
-                AbstractInsnNode insnNode = iterator.next();
-                int opcode = insnNode.getOpcode();
-                if (-1 == opcode) {
-                    continue;
-                } else if (Opcodes.INVOKEVIRTUAL <= opcode && opcode <= Opcodes.INVOKEDYNAMIC) {
-                    return false;
-                }
-            }
-            return true;
         }
+    }
 
-
-        private boolean isEmptyMethod() {
-            ListIterator<AbstractInsnNode> iterator = instructions.iterator();
-            while (iterator.hasNext()) {
-                AbstractInsnNode insnNode = iterator.next();
-                int opcode = insnNode.getOpcode();
-                if (-1 == opcode) {
-                    continue;
-                } else {
-                    return false;
-                }
-            }
-            return true;
+    private void addToClassHierarchy(String className, TraceMethod traceMethod) {
+        if (classHierarchy != null) {
+            classHierarchy.addMethod(className, traceMethod);
         }
-
     }
 
     public static boolean isWindowFocusChangeMethod(String name, String desc) {
@@ -414,22 +688,7 @@ public class MethodCollector {
     }
 
     public static boolean isNeedTrace(Configuration configuration, String clsName, MappingCollector mappingCollector) {
-        boolean isNeed = true;
-        if (configuration.blockSet.contains(clsName)) {
-            isNeed = false;
-        } else {
-            if (null != mappingCollector) {
-                clsName = mappingCollector.originalClassName(clsName, clsName);
-            }
-            clsName = clsName.replaceAll("/", ".");
-            for (String packageName : configuration.blockSet) {
-                if (clsName.startsWith(packageName.replaceAll("/", "."))) {
-                    isNeed = false;
-                    break;
-                }
-            }
-        }
-        return isNeed;
+        return !configuration.getBlockListMatcher().isBlocked(clsName, mappingCollector);
     }
 
 
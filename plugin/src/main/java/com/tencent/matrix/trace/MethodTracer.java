@@ -19,6 +19,8 @@ package com.tencent.matrix.trace;
 import com.tencent.matrix.plugin.MatrixPlugin;
 import com.tencent.matrix.javalib.util.FileUtil;
 import com.tencent.matrix.javalib.util.Log;
+import com.tencent.matrix.javalib.util.RawZipFile;
+import com.tencent.matrix.javalib.util.RawZipOutputStream;
 import com.tencent.matrix.javalib.util.Util;
 
 import org.apache.commons.io.IOUtils;
@@ -32,18 +34,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.LinkedList;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -61,60 +70,169 @@ public class MethodTracer {
 
     private static final String TAG = "Matrix.MethodTracer";
     private static AtomicInteger traceMethodCount = new AtomicInteger();
+    static final long PARALLEL_JAR_SIZE = 4 * 1024 * 1024;
+    static final int JAR_ENTRY_BATCH_SIZE = 256;
+    private static final byte[] SKIP_ENTRY = new byte[0];
+    /**
+     * Entry of jars and class directories whose classes already went through the aop visitors,
+     * like the outputs of the Gradle artifact transform or of library modules. Their classes are
+     * only collected, never visited again.
+     */
+    public static final String PRE_INSTRUMENTED_MARKER = "META-INF/matrix/aop.instrumented";
+    /**
+     * Local time of {@link RawZipOutputStream#REPRODUCIBLE_DOS_TIME}, {@link ZipEntry#setTime} converts
+     * it back with the default time zone.
+     */
+    private static final long REPRODUCIBLE_TIME = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
     private final Configuration configuration;
     private final ConcurrentHashMap<String, String> collectedClassExtendMap;
     private final ExecutorService executor;
+    private final TransformedClassCache classCache;
+    private final MethodCollector fusedCollector;
+    private final boolean isAopJar;
+    private final boolean isAopSrc;
+    private final boolean isReproducibleJar;
 
     private volatile boolean traceError = false;
+    private boolean isMarkInstrumented;
+    private Set<String> dependentPaths = Collections.emptySet();
+    private Map<File, File> instrumentedJars = Collections.emptyMap();
+    private Collection<File> classDirectories = Collections.emptyList();
+    private final AtomicInteger pendingCollectInputs = new AtomicInteger();
+
+    /**
+     * @param fusedCollector if not null, classes are collected by it while they are traced, instead of
+     *                       being read once more by {@link MethodCollector#collect}. {@link #trace} starts
+     *                       its method reports as soon as every input is collected, the caller only awaits them.
+     */
+    public MethodTracer(ExecutorService executor, Configuration config,  ConcurrentHashMap<String, String> collectedClassExtendMap,
+                        TransformedClassCache classCache, MethodCollector fusedCollector) {
+        this(executor, config, collectedClassExtendMap, classCache, fusedCollector, MatrixPlugin.mMatrixExtension.isAopJar,
+                MatrixPlugin.mMatrixExtension.isAopSrc, MatrixPlugin.mMatrixExtension.isReproducibleJar);
+    }
 
-    public MethodTracer(ExecutorService executor, Configuration config,  ConcurrentHashMap<String, String> collectedClassExtendMap) {
+    private MethodTracer(ExecutorService executor, Configuration config, ConcurrentHashMap<String, String> collectedClassExtendMap,
+                         TransformedClassCache classCache, MethodCollector fusedCollector, boolean isAopJar, boolean isAopSrc,
+                         boolean isReproducibleJar) {
         this.configuration = config;
+        this.isAopJar = isAopJar;
+        this.isAopSrc = isAopSrc;
+        this.isReproducibleJar = isReproducibleJar;
+        this.classCache = classCache;
+        this.fusedCollector = fusedCollector;
 
         this.executor = executor;
         this.collectedClassExtendMap = collectedClassExtendMap;
 
     }
 
-    public void trace(Map<File, File> srcFolderList, Map<File, File> dependencyJarList, ClassLoader classLoader, boolean ignoreCheckClass) throws ExecutionException, InterruptedException {
-        List<Future> futures = new LinkedList<>();
-        traceMethodFromSrc(srcFolderList, futures, classLoader, ignoreCheckClass);
-        traceMethodFromJar(dependencyJarList, futures, classLoader, ignoreCheckClass);
-        for (Future future : futures) {
-            future.get();
+    /**
+     * Traces a single jar on the calling thread, outside of any transform, and marks the output
+     * with {@link #PRE_INSTRUMENTED_MARKER}. Only the given options are used, not the extension
+     * of the build.
+     */
+    public static void traceJar(File input, File output, AopVisitorRegistry visitorRegistry, boolean skipCheckClass,
+                                boolean isAopJar, boolean isReproducibleJar) {
+        MethodTracer methodTracer = new MethodTracer(null, null, new ConcurrentHashMap<String, String>(), null, null,
+                isAopJar, false, isReproducibleJar);
+        methodTracer.isMarkInstrumented = true;
+        methodTracer.innerTraceMethodFromJar(input, output, visitorRegistry, skipCheckClass, methodTracer.new CollectedInput());
+        if (methodTracer.traceError) {
+            throw new IllegalArgumentException("something wrong with trace of " + input + ", see detail log before");
+        }
+    }
+
+    /**
+     * Marks the outputs whose classes went through the aop visitors with {@link #PRE_INSTRUMENTED_MARKER},
+     * set when the classes of a library module are traced.
+     */
+    public void setMarkInstrumented(boolean markInstrumented) {
+        this.isMarkInstrumented = markInstrumented;
+    }
+
+    /**
+     * Class files traced again only because a class they depend on changed. Their bytes are the
+     * same as in the last build but the visitors may now treat them differently, so they never
+     * come from the {@link TransformedClassCache}.
+     */
+    public void setDependentFiles(Collection<File> dependentFiles) {
+        Set<String> paths = new HashSet<>();
+        for (File file : dependentFiles) {
+            paths.add(file.getAbsolutePath());
+        }
+        this.dependentPaths = paths;
+    }
+
+    /**
+     * Outputs of the aop artifact transform for external jar inputs. The classes are read from the
+     * instrumented jar, but collected with the path of the original input.
+     */
+    public void setInstrumentedJars(Map<File, File> instrumentedJars) {
+        this.instrumentedJars = instrumentedJars;
+    }
+
+    /**
+     * Class directories of the inputs, only their roots may carry {@link #PRE_INSTRUMENTED_MARKER}
+     * when single class files are traced in incremental builds.
+     */
+    public void setClassDirectories(Collection<File> classDirectories) {
+        this.classDirectories = classDirectories;
+    }
+
+    public void trace(Map<File, File> srcFolderList, Map<File, File> dependencyJarList, AopVisitorRegistry visitorRegistry, boolean ignoreCheckClass) throws ExecutionException, InterruptedException {
+        List<TraceScheduler.Job> jobs = new ArrayList<>();
+        traceMethodFromSrc(srcFolderList, jobs, visitorRegistry, ignoreCheckClass);
+        traceMethodFromJar(dependencyJarList, jobs, visitorRegistry, ignoreCheckClass);
+        pendingCollectInputs.set(jobs.size());
+        if (jobs.isEmpty() && fusedCollector != null) {
+            fusedCollector.startSaveCollectedMethods();
         }
+        List<Future<?>> futures = TraceScheduler.submitLongestFirst(executor, jobs);
+        TraceScheduler.await(executor, futures);
         if (traceError) {
             throw new IllegalArgumentException("something wrong with trace, see detail log before");
         }
         futures.clear();
     }
 
-    private void traceMethodFromSrc(Map<File, File> srcMap, List<Future> futures, final ClassLoader classLoader, final boolean skipCheckClass) {
+    private void traceMethodFromSrc(Map<File, File> srcMap, List<TraceScheduler.Job> jobs, final AopVisitorRegistry visitorRegistry, final boolean skipCheckClass) {
         if (null != srcMap) {
-            for (Map.Entry<File, File> entry : srcMap.entrySet()) {
-                futures.add(executor.submit(new Runnable() {
+            for (final Map.Entry<File, File> entry : srcMap.entrySet()) {
+                jobs.add(new TraceScheduler.Job(FileUtil.getFileOrDirectorySize(entry.getKey()), new Runnable() {
                     @Override
                     public void run() {
-                        innerTraceMethodFromSrc(entry.getKey(), entry.getValue(), classLoader, skipCheckClass);
+                        CollectedInput collectedInput = new CollectedInput();
+                        try {
+                            innerTraceMethodFromSrc(entry.getKey(), entry.getValue(), visitorRegistry, skipCheckClass, collectedInput);
+                        } finally {
+                            collectedInput.collected();
+                        }
                     }
                 }));
             }
         }
     }
 
-    private void traceMethodFromJar(Map<File, File> dependencyMap, List<Future> futures, final ClassLoader classLoader, final boolean skipCheckClass) {
+    private void traceMethodFromJar(Map<File, File> dependencyMap, List<TraceScheduler.Job> jobs, final AopVisitorRegistry visitorRegistry, final boolean skipCheckClass) {
         if (null != dependencyMap) {
-            for (Map.Entry<File, File> entry : dependencyMap.entrySet()) {
-                futures.add(executor.submit(new Runnable() {
+            for (final Map.Entry<File, File> entry : dependencyMap.entrySet()) {
+                jobs.add(new TraceScheduler.Job(entry.getKey().length(), new Runnable() {
                     @Override
                     public void run() {
-                        innerTraceMethodFromJar(entry.getKey(), entry.getValue(), classLoader, skipCheckClass);
+                        CollectedInput collectedInput = new CollectedInput();
+                        try {
+                            innerTraceMethodFromJar(entry.getKey(), entry.getValue(), visitorRegistry, skipCheckClass, collectedInput);
+                        } finally {
+                            collectedInput.collected();
+                        }
                     }
                 }));
             }
         }
     }
 
-    private void innerTraceMethodFromSrc(File input, File output, ClassLoader classLoader, boolean ignoreCheckClass) {
+    private void innerTraceMethodFromSrc(File input, File output, AopVisitorRegistry visitorRegistry, boolean ignoreCheckClass,
+                                         CollectedInput collectedInput) {
 
         ArrayList<File> classFileList = new ArrayList<>();
         if (input.isDirectory()) {
@@ -122,8 +240,13 @@ public class MethodTracer {
         } else {
             classFileList.add(input);
         }
+        boolean isAopSrc = this.isAopSrc && !isPreInstrumented(input);
 
         for (File classFile : classFileList) {
+            if (!isMarkInstrumented && isMarkerFile(classFile)) {
+                // only consumed by the tracer, never packaged
+                continue;
+            }
             InputStream is = null;
             FileOutputStream os = null;
             try {
@@ -142,16 +265,13 @@ public class MethodTracer {
                 is = new FileInputStream(classFile);
                 byte[] sourceBytes= IOUtils.toByteArray(is);
 
-                if (MethodCollector.isNeedTraceFile(classFile.getName())&&MatrixPlugin.mMatrixExtension.isAopSrc) {
+                if (MethodCollector.isNeedTraceFile(classFile.getName())) {
+                    collectClass(sourceBytes, classFile.getAbsolutePath());
+                }
+
+                if (MethodCollector.isNeedTraceFile(classFile.getName()) && isAopSrc) {
 
-                    String[] aopVisitors = MatrixPlugin.mMatrixExtension.aopVisitors;
-                    if(aopVisitors!=null&&aopVisitors.length>0){
-                        for(String aopClassName:aopVisitors){
-                            Class<?> aopClass = classLoader.loadClass(aopClassName);
-                            Method modifyClassBytesMethod = aopClass.getMethod("modifyClassBytes", byte[].class);
-                            sourceBytes = (byte[]) modifyClassBytesMethod.invoke(aopClass.newInstance(),sourceBytes);
-                        }
-                    }
+                    sourceBytes = transformClass(visitorRegistry, sourceBytes, !dependentPaths.contains(changedFileInputFullPath));
 
                    // is = new FileInputStream(classFile);
 //                    ClassReader classReader = new ClassReader(is);
@@ -200,14 +320,233 @@ public class MethodTracer {
                 }
             }
         }
+        collectedInput.collected();
+        if (isMarkInstrumented && isAopSrc && input.isDirectory()) {
+            try {
+                File marker = new File(output, PRE_INSTRUMENTED_MARKER);
+                marker.getParentFile().mkdirs();
+                marker.createNewFile();
+            } catch (Exception e) {
+                Log.e(TAG, "[innerTraceMethodFromSrc] can not mark output:%s e:%s", output, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param input a class directory, or one of its class files in incremental builds.
+     */
+    private boolean isPreInstrumented(File input) {
+        if (input.isDirectory()) {
+            return new File(input, PRE_INSTRUMENTED_MARKER).isFile();
+        }
+        String path = input.getAbsolutePath();
+        for (File dir : classDirectories) {
+            if (path.startsWith(dir.getAbsolutePath() + File.separator)) {
+                return new File(dir, PRE_INSTRUMENTED_MARKER).isFile();
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMarkerFile(File file) {
+        return file.getPath().replace(File.separatorChar, '/').endsWith("/" + PRE_INSTRUMENTED_MARKER);
+    }
+
+    private void innerTraceMethodFromJar(File input, File output, AopVisitorRegistry visitorRegistry, boolean skipCheckClass,
+                                         CollectedInput collectedInput) {
+        String source = input.getAbsolutePath();
+        File instrumentedJar = instrumentedJars.get(input);
+        if (instrumentedJar != null && instrumentedJar.isFile()) {
+            input = instrumentedJar;
+        }
+        RawZipFile rawZipFile = null;
+        try {
+            rawZipFile = new RawZipFile(input);
+        } catch (Exception e) {
+            Log.w(TAG, "[innerTraceMethodFromJar] can not copy raw entries of input:%s e:%s", input, e.getMessage());
+        }
+        if (rawZipFile != null) {
+            innerTraceMethodFromRawJar(rawZipFile, input, source, output, visitorRegistry, skipCheckClass, collectedInput);
+        } else {
+            innerTraceMethodFromJarStream(input, source, output, visitorRegistry, skipCheckClass, collectedInput);
+        }
+    }
+
+    /**
+     * Copies untouched entries with their compressed bytes, only the classes changed by
+     * the visitors are compressed again.
+     * <p>
+     * Entries of large jars are traced in batches on the fork/join pool, the output jar is
+     * still written in the input order.
+     * </p>
+     */
+    private void innerTraceMethodFromRawJar(RawZipFile zipFile, File input, String source, File output, AopVisitorRegistry visitorRegistry,
+                                            boolean skipCheckClass, CollectedInput collectedInput) {
+        RawZipOutputStream zipOutputStream = null;
+        try {
+            zipOutputStream = new RawZipOutputStream(output, isReproducibleJar);
+            List<RawZipFile.Entry> entries = zipFile.entries();
+            boolean isAopJar = this.isAopJar && !isPreInstrumented(entries);
+            if (input.length() >= PARALLEL_JAR_SIZE && entries.size() > JAR_ENTRY_BATCH_SIZE && ForkJoinTask.inForkJoinPool()) {
+                List<ForkJoinTask<byte[][]>> batches = new ArrayList<>();
+                for (int start = 0; start < entries.size(); start += JAR_ENTRY_BATCH_SIZE) {
+                    int end = Math.min(start + JAR_ENTRY_BATCH_SIZE, entries.size());
+                    batches.add(new TraceJarBatchTask(zipFile, source, entries, start, end, output, visitorRegistry, skipCheckClass, isAopJar).fork());
+                }
+                List<byte[][]> results = new ArrayList<>(batches.size());
+                for (ForkJoinTask<byte[][]> batch : batches) {
+                    results.add(batch.join());
+                }
+                collectedInput.collected();
+                int index = 0;
+                for (byte[][] result : results) {
+                    for (byte[] data : result) {
+                        writeJarEntry(zipOutputStream, zipFile, entries.get(index++), data);
+                    }
+                }
+            } else {
+                for (RawZipFile.Entry zipEntry : entries) {
+                    writeJarEntry(zipOutputStream, zipFile, zipEntry, traceJarEntry(zipFile, source, zipEntry, output, visitorRegistry, skipCheckClass, isAopJar));
+                }
+                collectedInput.collected();
+            }
+            if (isMarkInstrumented && isAopJar) {
+                zipOutputStream.putEntry(PRE_INSTRUMENTED_MARKER, new byte[0]);
+            }
+            zipOutputStream.close();
+            zipOutputStream = null;
+        } catch (Exception e) {
+            Log.e(TAG, "[innerTraceMethodFromRawJar] input:%s output:%s e:%s", input, output, e.getMessage());
+            FileUtil.closeQuietly(zipOutputStream);
+            zipOutputStream = null;
+            try {
+                if (input.length() > 0) {
+                    Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Log.e(TAG, "[innerTraceMethodFromRawJar] input:%s is empty", input);
+                }
+            } catch (Exception e1) {
+                e1.printStackTrace();
+            }
+        } finally {
+            FileUtil.closeQuietly(zipOutputStream);
+            FileUtil.closeQuietly(zipFile);
+        }
+    }
+
+    /**
+     * @return null if the entry should be copied as is, {@link #SKIP_ENTRY} if it should be dropped,
+     * otherwise the new entry bytes.
+     */
+    private byte[] traceJarEntry(RawZipFile zipFile, String source, RawZipFile.Entry zipEntry, File output, AopVisitorRegistry visitorRegistry,
+                                 boolean skipCheckClass, boolean isAopJar) throws Exception {
+        String zipEntryName = zipEntry.getName();
+
+        if (Util.preventZipSlip(output, zipEntryName)) {
+            Log.e(TAG, "Unzip entry %s failed!", zipEntryName);
+            return SKIP_ENTRY;
+        }
+
+        if (!isMarkInstrumented && PRE_INSTRUMENTED_MARKER.equals(zipEntryName)) {
+            return SKIP_ENTRY;
+        }
+
+        if (!MethodCollector.isNeedTraceFile(zipEntryName) || (!isAopJar && fusedCollector == null)) {
+            return null;
+        }
+        byte[] sourceBytes = zipFile.readBytes(zipEntry);
+        collectClass(sourceBytes, source);
+        if (!isAopJar) {
+            return null;
+        }
+        byte[] data = transformClass(visitorRegistry, sourceBytes, true);
+
+        if (!skipCheckClass) {
+            try {
+                ClassReader r = new ClassReader(data);
+                ClassWriter w = new ClassWriter(0);
+                ClassVisitor v = new CheckClassAdapter(w);
+                r.accept(v, ClassReader.EXPAND_FRAMES);
+            } catch (Throwable e) {
+                System.err.println("trace jar output ERROR: " + e.getMessage() + ", " + zipEntryName);
+                traceError = true;
+            }
+        }
+
+        if (data == sourceBytes || Arrays.equals(data, sourceBytes)) {
+            return null;
+        }
+        return data;
+    }
+
+    private static boolean isPreInstrumented(List<RawZipFile.Entry> entries) {
+        for (RawZipFile.Entry entry : entries) {
+            if (PRE_INSTRUMENTED_MARKER.equals(entry.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeJarEntry(RawZipOutputStream zipOutputStream, RawZipFile zipFile, RawZipFile.Entry zipEntry, byte[] data) throws Exception {
+        if (data == null) {
+            zipOutputStream.copyEntry(zipFile, zipEntry);
+        } else if (data != SKIP_ENTRY) {
+            zipOutputStream.putEntry(zipEntry, data);
+        }
+    }
+
+    private class TraceJarBatchTask extends RecursiveTask<byte[][]> {
+        private static final long serialVersionUID = 1L;
+
+        private final RawZipFile zipFile;
+        private final String source;
+        private final List<RawZipFile.Entry> entries;
+        private final int start;
+        private final int end;
+        private final File output;
+        private final AopVisitorRegistry visitorRegistry;
+        private final boolean skipCheckClass;
+        private final boolean isAopJar;
+
+        TraceJarBatchTask(RawZipFile zipFile, String source, List<RawZipFile.Entry> entries, int start, int end, File output,
+                          AopVisitorRegistry visitorRegistry, boolean skipCheckClass, boolean isAopJar) {
+            this.zipFile = zipFile;
+            this.source = source;
+            this.entries = entries;
+            this.start = start;
+            this.end = end;
+            this.output = output;
+            this.visitorRegistry = visitorRegistry;
+            this.skipCheckClass = skipCheckClass;
+            this.isAopJar = isAopJar;
+        }
+
+        @Override
+        protected byte[][] compute() {
+            byte[][] result = new byte[end - start][];
+            try {
+                for (int i = start; i < end; i++) {
+                    result[i - start] = traceJarEntry(zipFile, source, entries.get(i), output, visitorRegistry, skipCheckClass, isAopJar);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return result;
+        }
     }
 
-    private void innerTraceMethodFromJar(File input, File output, final ClassLoader classLoader, boolean skipCheckClass) {
+    private void innerTraceMethodFromJarStream(File input, String source, File output, AopVisitorRegistry visitorRegistry, boolean skipCheckClass,
+                                               CollectedInput collectedInput) {
         ZipOutputStream zipOutputStream = null;
         ZipFile zipFile = null;
         try {
             zipOutputStream = new ZipOutputStream(new FileOutputStream(output));
+            if (isReproducibleJar) {
+                zipOutputStream.setLevel(RawZipOutputStream.REPRODUCIBLE_LEVEL);
+            }
             zipFile = new ZipFile(input);
+            boolean isAopJar = this.isAopJar && zipFile.getEntry(PRE_INSTRUMENTED_MARKER) == null;
             Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
             while (enumeration.hasMoreElements()) {
                 ZipEntry zipEntry = enumeration.nextElement();
@@ -218,19 +557,23 @@ public class MethodTracer {
                     continue;
                 }
 
-                if (MethodCollector.isNeedTraceFile(zipEntryName)&&MatrixPlugin.mMatrixExtension.isAopJar) {
+                if (!isMarkInstrumented && PRE_INSTRUMENTED_MARKER.equals(zipEntryName)) {
+                    continue;
+                }
+
+                boolean isTraceFile = MethodCollector.isNeedTraceFile(zipEntryName);
+                if (isTraceFile && fusedCollector != null && !isAopJar) {
+                    byte[] sourceBytes = IOUtils.toByteArray(zipFile.getInputStream(zipEntry));
+                    collectClass(sourceBytes, source);
+                    ZipEntry newZipEntry = newZipEntry(zipEntryName);
+                    FileUtil.addZipEntry(zipOutputStream, newZipEntry, new ByteArrayInputStream(sourceBytes));
+                } else if (isTraceFile && isAopJar) {
                     InputStream inputStream = zipFile.getInputStream(zipEntry);
 
                     byte[] sourceBytes= IOUtils.toByteArray(inputStream);
+                    collectClass(sourceBytes, source);
 
-                    String[] aopVisitors = MatrixPlugin.mMatrixExtension.aopVisitors;
-                    if(aopVisitors!=null&&aopVisitors.length>0){
-                        for(String aopClassName:aopVisitors){
-                            Class<?> aopClass = classLoader.loadClass(aopClassName);
-                            Method modifyClassBytesMethod = aopClass.getMethod("modifyClassBytes", byte[].class);
-                            sourceBytes = (byte[]) modifyClassBytesMethod.invoke(aopClass.newInstance(),sourceBytes);
-                        }
-                    }
+                    sourceBytes = transformClass(visitorRegistry, sourceBytes, true);
 
 //                    ClassReader classReader = new ClassReader(inputStream);
 //                    ClassWriter classWriter = new TraceClassWriter(ClassWriter.COMPUTE_FRAMES, classLoader);
@@ -252,14 +595,18 @@ public class MethodTracer {
                     }
 
                     InputStream byteArrayInputStream = new ByteArrayInputStream(data);
-                    ZipEntry newZipEntry = new ZipEntry(zipEntryName);
+                    ZipEntry newZipEntry = newZipEntry(zipEntryName);
                     FileUtil.addZipEntry(zipOutputStream, newZipEntry, byteArrayInputStream);
                 } else {
                     InputStream inputStream = zipFile.getInputStream(zipEntry);
-                    ZipEntry newZipEntry = new ZipEntry(zipEntryName);
+                    ZipEntry newZipEntry = newZipEntry(zipEntryName);
                     FileUtil.addZipEntry(zipOutputStream, newZipEntry, inputStream);
                 }
             }
+            collectedInput.collected();
+            if (isMarkInstrumented && isAopJar) {
+                FileUtil.addZipEntry(zipOutputStream, newZipEntry(PRE_INSTRUMENTED_MARKER), new ByteArrayInputStream(new byte[0]));
+            }
         } catch (Exception e) {
             Log.e(TAG, "[innerTraceMethodFromJar] input:%s output:%s e:%s", input, output, e.getMessage());
             if (e instanceof ZipException) {
@@ -290,6 +637,73 @@ public class MethodTracer {
         }
     }
 
+    private ZipEntry newZipEntry(String name) {
+        ZipEntry zipEntry = new ZipEntry(name);
+        if (isReproducibleJar) {
+            zipEntry.setTime(REPRODUCIBLE_TIME);
+        }
+        return zipEntry;
+    }
+
+    /**
+     * @param source path of the class file or jar.
+     */
+    private void collectClass(byte[] classBytes, String source) {
+        if (fusedCollector == null) {
+            return;
+        }
+        try {
+            fusedCollector.collectClass(classBytes, source);
+        } catch (Exception e) {
+            Log.e(TAG, "[collectClass] %s e:%s", source, e.getMessage());
+        }
+    }
+
+    private byte[] transformClass(AopVisitorRegistry visitorRegistry, byte[] sourceBytes, boolean isCacheable) throws Exception {
+        try {
+            return transformClassOrCached(visitorRegistry, sourceBytes, isCacheable);
+        } catch (AopClassWriter.MissingTypeException e) {
+            // the callers copy the input on failure, make sure the build does not pass with it
+            Log.e(TAG, "[transformClass] %s", e.getMessage());
+            traceError = true;
+            throw e;
+        }
+    }
+
+    private byte[] transformClassOrCached(AopVisitorRegistry visitorRegistry, byte[] sourceBytes, boolean isCacheable) throws Exception {
+        if (classCache == null || visitorRegistry.isEmpty() || !isCacheable) {
+            return visitorRegistry.transform(sourceBytes);
+        }
+        String key = classCache.key(sourceBytes, visitorRegistry.getHierarchyKey(sourceBytes));
+        byte[] data = classCache.get(key, sourceBytes);
+        if (data == null) {
+            data = visitorRegistry.transform(sourceBytes);
+            if (!visitorRegistry.isLastTransformTypeResolved()) {
+                classCache.put(key, sourceBytes, data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Signals that every class of one input went through the fused collector. Once the last input
+     * is collected the method reports are started, they are written while the tracer still
+     * writes its outputs. Confined to the thread running the input's job.
+     */
+    private final class CollectedInput {
+        private boolean isCollected;
+
+        void collected() {
+            if (isCollected) {
+                return;
+            }
+            isCollected = true;
+            if (pendingCollectInputs.decrementAndGet() == 0 && fusedCollector != null) {
+                fusedCollector.startSaveCollectedMethods();
+            }
+        }
+    }
+
     private void listClassFiles(ArrayList<File> classFiles, File folder) {
         File[] files = folder.listFiles();
         if (null == files) {
@@ -8,10 +8,13 @@ import com.google.common.collect.ImmutableList;
 import org.gradle.api.Project;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
 
 /**
  * Created by habbyge on 2019/4/24.
@@ -20,9 +23,27 @@ public class TraceClassLoader {
 
     public static URLClassLoader getClassLoader(Project project, Collection<File> inputFiles)
             throws MalformedURLException {
+        return getClassLoader(getAndroidJar(project), inputFiles);
+    }
+
+    /**
+     * For callers without a {@link Project}, like worker processes.
+     *
+     * @param androidJar may be null.
+     */
+    public static URLClassLoader getClassLoader(File androidJar, Collection<File> inputFiles)
+            throws MalformedURLException {
+        return getClassLoader(androidJar, inputFiles, Collections.<File>emptyList());
+    }
+
+    /**
+     * @param visitorClasspath jars or directories of the aop visitors on the build script classpath,
+     *                         they are loaded by the trace class loader like the inputs.
+     */
+    public static URLClassLoader getClassLoader(File androidJar, Collection<File> inputFiles, Collection<File> visitorClasspath)
+            throws MalformedURLException {
 
         ImmutableList.Builder<URL> urls = new ImmutableList.Builder<>();
-        File androidJar = getAndroidJar(project);
         if (androidJar != null) {
             urls.add(androidJar.toURI().toURL());
         }
@@ -31,6 +52,10 @@ public class TraceClassLoader {
             urls.add(inputFile.toURI().toURL());
         }
 
+        for (File file : visitorClasspath) {
+            urls.add(file.toURI().toURL());
+        }
+
 //        for (TransformInput inputs : Iterables.concat(invocation.getInputs(), invocation.getReferencedInputs())) {
 //            for (DirectoryInput directoryInput : inputs.getDirectoryInputs()) {
 //                if (directoryInput.getFile().isDirectory()) {
@@ -46,10 +71,10 @@ public class TraceClassLoader {
 
         ImmutableList<URL> urlImmutableList = urls.build();
         URL[] classLoaderUrls = urlImmutableList.toArray(new URL[urlImmutableList.size()]);
-        return new URLClassLoader(classLoaderUrls);
+        return new URLClassLoader(classLoaderUrls, new VisitorContractClassLoader(TraceClassLoader.class.getClassLoader()));
     }
 
-    private static File getAndroidJar(Project project) {
+    public static File getAndroidJar(Project project) {
         BaseExtension extension = null;
         if (project.getPlugins().hasPlugin("com.android.application")) {
             extension = project.getExtensions().findByType(AppExtension.class);
@@ -67,4 +92,53 @@ public class TraceClassLoader {
         File androidJar = new File(androidJarPath);
         return androidJar.exists() ? androidJar : null;
     }
+
+    /**
+     * Parent of the trace class loader, aop visitors share ASM and the
+     * {@code com.tencent.matrix.trace.extension} contract with the plugin through it.
+     * The rest of the plugin class loader, guava, kotlin or AGP, stays hidden so the traced
+     * classes never resolve against the build's own copies.
+     */
+    static class VisitorContractClassLoader extends ClassLoader {
+
+        private static final String[] CONTRACT_PACKAGES = {
+                "org.objectweb.asm.",
+                "com.tencent.matrix.trace.extension.",
+        };
+
+        private final ClassLoader pluginClassLoader;
+
+        VisitorContractClassLoader(ClassLoader pluginClassLoader) {
+            // the platform (extension on java 8) class loader, without the application classpath
+            super(ClassLoader.getSystemClassLoader().getParent());
+            this.pluginClassLoader = pluginClassLoader;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (isContract(name)) {
+                return pluginClassLoader.loadClass(name);
+            }
+            throw new ClassNotFoundException(name);
+        }
+
+        @Override
+        protected URL findResource(String name) {
+            return isContract(name.replace('/', '.')) ? pluginClassLoader.getResource(name) : null;
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(String name) throws IOException {
+            return isContract(name.replace('/', '.')) ? pluginClassLoader.getResources(name) : Collections.<URL>emptyEnumeration();
+        }
+
+        static boolean isContract(String name) {
+            for (String contractPackage : CONTRACT_PACKAGES) {
+                if (name.startsWith(contractPackage)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
@@ -0,0 +1,221 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work-stealing pool shared by all the trace transforms running in the same Gradle daemon.
+ * <p>
+ * Each transform works on its own {@link Lane}, which caps its running tasks to a fair share
+ * of the pool so that concurrent variants do not starve each other. The pool is shut down
+ * when the last lane is shut down.
+ * </p>
+ */
+public final class TraceScheduler {
+
+    private static final String TAG = "Matrix.TraceScheduler";
+
+    private static TraceScheduler sScheduler;
+
+    private final ForkJoinPool pool;
+    private final List<Lane> lanes = new ArrayList<>();
+
+    private TraceScheduler(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @param maxWorkers Gradle's max workers, or a non positive value to only use the processor count.
+     */
+    public static synchronized ExecutorService acquire(String name, int maxWorkers) {
+        if (sScheduler == null) {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            if (maxWorkers > 0) {
+                parallelism = Math.min(parallelism, maxWorkers);
+            }
+            sScheduler = new TraceScheduler(Math.max(1, parallelism));
+            Log.i(TAG, "[acquire] create pool, parallelism:%s", sScheduler.pool.getParallelism());
+        }
+        Lane lane = sScheduler.new Lane(name);
+        sScheduler.lanes.add(lane);
+        return lane;
+    }
+
+    private static synchronized void release(TraceScheduler scheduler, Lane lane) {
+        scheduler.lanes.remove(lane);
+        if (scheduler.lanes.isEmpty() && sScheduler == scheduler) {
+            Log.i(TAG, "[release] shutdown pool");
+            scheduler.pool.shutdown();
+            sScheduler = null;
+        }
+    }
+
+    private static synchronized int laneCount(TraceScheduler scheduler) {
+        return Math.max(1, scheduler.lanes.size());
+    }
+
+    /**
+     * Submits {@code jobs} longest first, so the biggest jars and directories do not end up
+     * as the tail of the step.
+     */
+    public static List<Future<?>> submitLongestFirst(ExecutorService executor, List<Job> jobs) {
+        Collections.sort(jobs, new Comparator<Job>() {
+            @Override
+            public int compare(Job o1, Job o2) {
+                return Long.compare(o2.size, o1.size);
+            }
+        });
+        List<Future<?>> futures = new LinkedList<>();
+        for (Job job : jobs) {
+            futures.add(executor.submit(job.runnable));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for {@code futures} of jobs submitted to {@code executor}, draining it first if it is
+     * {@link Awaitable}.
+     */
+    public static void await(ExecutorService executor, List<Future<?>> futures) throws ExecutionException, InterruptedException {
+        if (executor instanceof Awaitable) {
+            ((Awaitable) executor).await();
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    /**
+     * Executor whose jobs may only run once their owner waits in {@link #await()}, like the Gradle
+     * worker API which gives the task's worker lease to the jobs while waiting.
+     */
+    public interface Awaitable {
+        void await() throws InterruptedException;
+    }
+
+    public static class Job {
+        final long size;
+        final Runnable runnable;
+
+        public Job(long size, Runnable runnable) {
+            this.size = size;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Executor view of the shared pool for one transform.
+     */
+    private class Lane extends AbstractExecutorService {
+
+        private final String name;
+        private final Queue<Runnable> pending = new LinkedList<>();
+        private int running;
+        private boolean shutdown;
+
+        Lane(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                if (shutdown) {
+                    throw new IllegalStateException("lane " + name + " is shutdown");
+                }
+                pending.add(command);
+            }
+            drain();
+        }
+
+        private void drain() {
+            int quota = Math.max(1, pool.getParallelism() / laneCount(TraceScheduler.this));
+            while (true) {
+                final Runnable task;
+                synchronized (this) {
+                    if (running >= quota || pending.isEmpty()) {
+                        return;
+                    }
+                    task = pending.poll();
+                    running++;
+                }
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            synchronized (Lane.this) {
+                                running--;
+                                Lane.this.notifyAll();
+                            }
+                            drain();
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (this) {
+                if (shutdown) {
+                    return;
+                }
+                shutdown = true;
+            }
+            release(TraceScheduler.this, this);
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            List<Runnable> dropped;
+            synchronized (this) {
+                dropped = new ArrayList<>(pending);
+                pending.clear();
+            }
+            shutdown();
+            return dropped;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && running == 0 && pending.isEmpty();
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Lane(" + name + ")";
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.Log;
+import com.tencent.matrix.javalib.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of aop transformed class bytes, shared across builds.
+ * <p>
+ * Entries are keyed by the hash of the input class bytes and supertypes together with the
+ * identity of the visitor chain, so unchanged classes are served from the cache whatever jar
+ * they come from. Classes whose frames needed the hierarchy of other classes are not cached.
+ * An empty entry means the visitors left the class untouched. When the cache grows over
+ * its max size the least recently used entries are evicted on {@link #close()}.
+ * </p>
+ */
+public class TransformedClassCache {
+
+    private static final String TAG = "Matrix.TransformedClassCache";
+    private static final String CACHE_VERSION = "2";
+
+    private final File cacheDir;
+    private final long maxSize;
+    private final byte[] salt;
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    public TransformedClassCache(File cacheDir, long maxSize, String visitorIdentity) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.salt = (CACHE_VERSION + ":" + visitorIdentity).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param hierarchyKey see {@link AopVisitorRegistry#getHierarchyKey}.
+     */
+    public String key(byte[] classBytes, String hierarchyKey) {
+        MessageDigest digest = newDigest();
+        digest.update(salt);
+        digest.update(classBytes);
+        digest.update(hierarchyKey.getBytes(StandardCharsets.UTF_8));
+        return Util.byteArrayToHex(digest.digest());
+    }
+
+    /**
+     * @return the transformed bytes, {@code classBytes} itself if the visitors did not change it,
+     * or null on miss.
+     */
+    public byte[] get(String key, byte[] classBytes) {
+        File entry = entryFile(key);
+        if (!entry.isFile()) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(entry.toPath());
+            entry.setLastModified(System.currentTimeMillis());
+            hitCount.incrementAndGet();
+            return data.length == 0 ? classBytes : data;
+        } catch (IOException e) {
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] classBytes, byte[] transformedBytes) {
+        File entry = entryFile(key);
+        File tmp = new File(entry.getParentFile(), key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            entry.getParentFile().mkdirs();
+            byte[] data = transformedBytes == classBytes ? new byte[0] : transformedBytes;
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.w(TAG, "[put] %s e:%s", key, e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Logs hit/miss counters and evicts the least recently used entries over the max size.
+     */
+    public void close() {
+        int hit = hitCount.get();
+        int miss = missCount.get();
+        Log.i(TAG, "[close] hit:%s miss:%s hit rate:%.1f%% dir:%s", hit, miss,
+                hit + miss == 0 ? 0f : hit * 100f / (hit + miss), cacheDir.getAbsolutePath());
+
+        List<File> entries = new ArrayList<>();
+        File[] buckets = cacheDir.listFiles();
+        if (buckets == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                entries.add(file);
+                totalSize += file.length();
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+        final long[] lastModified = new long[entries.size()];
+        final List<Integer> order = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            lastModified[i] = entries.get(i).lastModified();
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(lastModified[o1], lastModified[o2]);
+            }
+        });
+        int evictCount = 0;
+        for (int index : order) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            File file = entries.get(index);
+            long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+                evictCount++;
+            }
+        }
+        Log.i(TAG, "[close] evict %s entries, size:%s", evictCount, Util.formatByteUnit(totalSize));
+    }
+
+    private File entryFile(String key) {
+        return new File(new File(cacheDir, key.substring(0, 2)), key);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.tencent.matrix.trace.extension;
+
+import org.objectweb.asm.ClassVisitor;
+
+/**
+ * Aop visitor contract that hands out an ASM {@link ClassVisitor} instead of
+ * rewriting the class bytes, so that consecutive visitors share one
+ * ClassReader -> ClassWriter pass.
+ * <p>
+ * Visitors which only declare {@code byte[] modifyClassBytes(byte[])} keep working,
+ * each of them is still run as a separate pass.
+ * </p>
+ */
+public interface IAopClassVisitorFactory {
+
+    ClassVisitor createClassVisitor(int api, ClassVisitor next);
+}
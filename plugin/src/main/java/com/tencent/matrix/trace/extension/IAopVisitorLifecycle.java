@@ -0,0 +1,13 @@
+package com.tencent.matrix.trace.extension;
+
+/**
+ * Optional hooks for aop visitors. Visitor instances are reused across classes by the
+ * thread that created them, {@link #onTraceStart()} is called right after an instance is
+ * created and {@link #onTraceEnd()} once the trace step of the build has finished.
+ */
+public interface IAopVisitorLifecycle {
+
+    void onTraceStart();
+
+    void onTraceEnd();
+}
@@ -1,7 +1,57 @@
 package com.tencent.matrix.trace.extension;
 
-public class MatrixExtension {
+import java.io.Serializable;
+import java.lang.reflect.Field;
+
+public class MatrixExtension implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public String[] aopVisitors;
     public  boolean isAopJar=true;
     public  boolean isAopSrc=true;
+    public  boolean isClassCache=true;
+    public  String classCacheDir;
+    public  long classCacheMaxSize=1024L*1024*1024;
+    public  boolean isFusedCollect=true;
+    public  boolean isBaseMethodMapCache=true;
+    public  boolean isBinaryMethodMap=false;
+    public  boolean isMethodMapGzip=false;
+    public  boolean isIgnoreMethodMap=true;
+    public  boolean isStableMethodId=true;
+    public  boolean isReproducibleJar=true;
+    public  boolean isAopArtifactTransform=false;
+    public  boolean isClassHierarchyIndex=true;
+    /**
+     * Frames of classes referring to types missing from the trace classpath are computed with
+     * java/lang/Object as common super class instead of failing the build. The output may not verify.
+     */
+    public  boolean isLenientFrames=false;
+    /**
+     * On AGP 7 and above, the aop visitors of the application run in AGP's own class pass through
+     * its instrumentation api, instead of the trace task or transform. Every visitor must be an
+     * {@link IAopClassVisitorFactory} on the build script classpath, and no method mapping is written.
+     */
+    public  boolean isInstrumentationApi=false;
+    /**
+     * Where the trace jobs run: "none" on the plugin's own pool, "daemon" as Gradle worker API
+     * jobs in the daemon, "process" as one Gradle worker process with {@link #traceWorkerMaxHeapSize}.
+     */
+    public  String traceWorkerIsolation="none";
+    public  String traceWorkerMaxHeapSize;
+
+    /**
+     * Plain copy of the extension, which unlike the Gradle decorated instance can be sent to a
+     * worker process.
+     */
+    public MatrixExtension copy() {
+        MatrixExtension copy = new MatrixExtension();
+        try {
+            for (Field field : MatrixExtension.class.getFields()) {
+                field.set(copy, field.get(this));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return copy;
+    }
 }
@@ -0,0 +1,282 @@
+package com.tencent.matrix.trace.item;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compact binary form of the method mapping, written next to the text mapping.
+ * <p>
+ * Layout, big endian:
+ * <pre>
+ * magic, version
+ * string pool   count, then (varint length, utf-8 bytes) per string
+ * records       (varint access, varint class, varint name, varint desc + 1) per method
+ * string table  int offset per string
+ * id index      int minId, int length, int record offset per id (-1 if absent)
+ * footer        int string table offset, int id index offset, int method count, magic
+ * </pre>
+ * Readers map the file and go from an id to its record in O(1) through the id index, strings
+ * are only decoded for the records that are read. This class and its {@link Method} records have
+ * no dependency besides the JDK, so that symbolication tools can copy them as is.
+ * </p>
+ */
+public final class BinaryMethodMap {
+
+    private static final int MAGIC = 0x4d4d424d; // MMBM
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = 16;
+    private static final int ENCODE_CHUNK = 16 * 1024;
+
+    private final ByteBuffer buffer;
+    private final int stringTableOffset;
+    private final int minId;
+    private final int idCount;
+    private final int idIndexOffset;
+    private final int methodCount;
+
+    private BinaryMethodMap(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        int footer = buffer.limit() - FOOTER_SIZE;
+        if (footer < 8 || buffer.getInt(0) != MAGIC || buffer.getInt(footer + 12) != MAGIC) {
+            throw new IOException("not a binary method map");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported binary method map version " + buffer.getInt(4));
+        }
+        this.stringTableOffset = buffer.getInt(footer);
+        int indexOffset = buffer.getInt(footer + 4);
+        this.methodCount = buffer.getInt(footer + 8);
+        this.minId = buffer.getInt(indexOffset);
+        this.idCount = buffer.getInt(indexOffset + 4);
+        this.idIndexOffset = indexOffset + 8;
+    }
+
+    /**
+     * Maps {@code file} read only. The returned map can be shared by threads.
+     */
+    public static BinaryMethodMap open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new BinaryMethodMap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            channel.close();
+        }
+    }
+
+    public int size() {
+        return methodCount;
+    }
+
+    /**
+     * @return the method with {@code id}, or null if there is none.
+     */
+    public Method get(int id) {
+        long index = (long) id - minId;
+        if (index < 0 || index >= idCount) {
+            return null;
+        }
+        int offset = buffer.getInt(idIndexOffset + (int) index * 4);
+        if (offset < 0) {
+            return null;
+        }
+        int[] position = {offset};
+        int accessFlag = readVarint(buffer, position);
+        String className = string(readVarint(buffer, position));
+        String methodName = string(readVarint(buffer, position));
+        int desc = readVarint(buffer, position);
+        return new Method(id, accessFlag, className, methodName, desc == 0 ? null : string(desc - 1));
+    }
+
+    private String string(int stringId) {
+        int[] position = {buffer.getInt(stringTableOffset + stringId * 4)};
+        int length = readVarint(buffer, position);
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position[0]);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarint(ByteBuffer buffer, int[] position) {
+        int value = 0;
+        int shift = 0;
+        int pos = position[0];
+        byte b;
+        do {
+            b = buffer.get(pos++);
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        position[0] = pos;
+        return value;
+    }
+
+    /**
+     * Writes {@code methods} to {@code file}. Records are encoded in parallel chunks when called
+     * from a fork join pool, and streamed out in the order of {@code methods}.
+     */
+    public static void write(File file, List<Method> methods) throws IOException {
+        final Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for (Method method : methods) {
+            minId = Math.min(minId, method.id);
+            maxId = Math.max(maxId, method.id);
+            intern(method.className, stringIds, strings);
+            intern(method.methodName, stringIds, strings);
+            intern(method.desc, stringIds, strings);
+        }
+        if (methods.isEmpty()) {
+            minId = 0;
+            maxId = -1;
+        }
+
+        List<EncodeTask> tasks = new ArrayList<>();
+        for (int start = 0; start < methods.size(); start += ENCODE_CHUNK) {
+            tasks.add(new EncodeTask(methods.subList(start, Math.min(methods.size(), start + ENCODE_CHUNK)), stringIds));
+        }
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (EncodeTask task : tasks) {
+                task.invoke();
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        boolean isWritten = false;
+        try {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(strings.size());
+            int[] stringOffsets = new int[strings.size()];
+            ByteArrayOutputStream varint = new ByteArrayOutputStream(5);
+            for (int i = 0; i < strings.size(); i++) {
+                stringOffsets[i] = os.size();
+                byte[] bytes = strings.get(i).getBytes(StandardCharsets.UTF_8);
+                varint.reset();
+                writeVarint(varint, bytes.length);
+                varint.writeTo(os);
+                os.write(bytes);
+            }
+
+            int[] recordOffsets = new int[maxId - minId + 1];
+            Arrays.fill(recordOffsets, -1);
+            int methodIndex = 0;
+            for (EncodeTask task : tasks) {
+                int base = os.size();
+                for (int offset : task.offsets) {
+                    recordOffsets[methods.get(methodIndex++).id - minId] = base + offset;
+                }
+                task.out.writeTo(os);
+            }
+
+            int stringTableOffset = os.size();
+            for (int offset : stringOffsets) {
+                os.writeInt(offset);
+            }
+            int indexOffset = os.size();
+            os.writeInt(minId);
+            os.writeInt(recordOffsets.length);
+            for (int offset : recordOffsets) {
+                os.writeInt(offset);
+            }
+            os.writeInt(stringTableOffset);
+            os.writeInt(indexOffset);
+            os.writeInt(methods.size());
+            os.writeInt(MAGIC);
+            isWritten = true;
+        } finally {
+            os.close();
+            if (!isWritten) {
+                tmp.delete();
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void intern(String value, Map<String, Integer> stringIds, List<String> strings) {
+        if (value != null && !stringIds.containsKey(value)) {
+            stringIds.put(value, strings.size());
+            strings.add(value);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Encodes the records of a slice of the methods, offsets are relative to the slice.
+     */
+    private static class EncodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+
+        private final List<Method> methods;
+        private final Map<String, Integer> stringIds;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int[] offsets;
+
+        EncodeTask(List<Method> methods, Map<String, Integer> stringIds) {
+            this.methods = methods;
+            this.stringIds = stringIds;
+            this.offsets = new int[methods.size()];
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < methods.size(); i++) {
+                Method method = methods.get(i);
+                offsets[i] = out.size();
+                writeVarint(out, method.accessFlag);
+                writeVarint(out, stringIds.get(method.className));
+                writeVarint(out, stringIds.get(method.methodName));
+                writeVarint(out, method.desc == null ? 0 : stringIds.get(method.desc) + 1);
+            }
+        }
+    }
+
+    /**
+     * A method record, {@code desc} is null for methods written without one.
+     */
+    public static final class Method {
+        public final int id;
+        public final int accessFlag;
+        public final String className;
+        public final String methodName;
+        public final String desc;
+
+        public Method(int id, int accessFlag, String className, String methodName, String desc) {
+            this.id = id;
+            this.accessFlag = accessFlag;
+            this.className = className;
+            this.methodName = methodName;
+            this.desc = desc;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.tencent.matrix.trace.retrace;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Open addressing map from non negative int keys to int values, without boxing.
+ */
+final class IntIntMap {
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    IntIntMap(int expectedSize) {
+        int capacity = StringPool.tableSizeFor(expectedSize);
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, -1);
+    }
+
+    void put(int key, int value) {
+        int mask = keys.length - 1;
+        int slot = StringPool.mix(key * 0x9E3779B9) & mask;
+        while (keys[slot] != -1) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * @return the value of {@code key}, or {@code defaultValue} if absent.
+     */
+    int get(int key, int defaultValue) {
+        if (key < 0) {
+            return defaultValue;
+        }
+        int mask = keys.length - 1;
+        int slot = StringPool.mix(key * 0x9E3779B9) & mask;
+        while (keys[slot] != -1) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    void writeTo(DataOutputStream os) throws IOException {
+        os.writeInt(size);
+        StringPool.writeInts(os, keys, keys.length);
+        StringPool.writeInts(os, values, values.length);
+    }
+
+    static IntIntMap readFrom(ByteBuffer buffer) {
+        IntIntMap map = new IntIntMap(0);
+        map.size = buffer.getInt();
+        map.keys = StringPool.readInts(buffer, buffer.getInt());
+        map.values = StringPool.readInts(buffer, buffer.getInt());
+        return map;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, -1);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != -1) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.tencent.matrix.trace.retrace;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Open addressing map from long keys to non negative int values, without boxing.
+ */
+final class LongIntMap {
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    LongIntMap(int expectedSize) {
+        int capacity = StringPool.tableSizeFor(expectedSize);
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    static long key(int high, int low) {
+        return ((long) high << 32) | (low & 0xffffffffL);
+    }
+
+    void put(long key, int value) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] = value + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value + 1;
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * @return the value of {@code key}, or -1 if absent.
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                return values[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    void writeTo(DataOutputStream os) throws IOException {
+        os.writeInt(size);
+        os.writeInt(keys.length);
+        for (long key : keys) {
+            os.writeLong(key);
+        }
+        StringPool.writeInts(os, values, values.length);
+    }
+
+    static LongIntMap readFrom(ByteBuffer buffer) {
+        LongIntMap map = new LongIntMap(0);
+        map.size = buffer.getInt();
+        map.keys = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(map.keys);
+        buffer.position(buffer.position() + map.keys.length * 8);
+        map.values = StringPool.readInts(buffer, buffer.getInt());
+        return map;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return StringPool.mix((int) (h ^ (h >>> 32)));
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                put(oldKeys[i], oldValues[i] - 1);
+            }
+        }
+    }
+}
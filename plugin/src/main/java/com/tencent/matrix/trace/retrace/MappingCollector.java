@@ -21,32 +21,64 @@ import com.tencent.matrix.javalib.util.Log;
 
 import org.objectweb.asm.Type;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by caichongyang on 2017/8/3.
+ * <p>
+ * Names are interned in a {@link StringPool} and the mappings are kept in int keyed tables.
+ * Method mappings are flat records chained per (class, method name), in both the obfuscated
+ * and the original direction, {@link MethodInfo} instances are only created for lookups.
+ * </p>
+ * <p>
+ * Once parsing is done, {@link #buildIndex()} translates the arguments and return type of every
+ * method once and indexes the chains by arguments, and translated descriptors are memoized, so
+ * the method lookups are a few hash probes.
+ * </p>
  */
 public class MappingCollector implements MappingProcessor {
     private final static String TAG = "MappingCollector";
     private final static int DEFAULT_CAPACITY = 2000;
-    public HashMap<String, String> mObfuscatedRawClassMap = new HashMap<>(DEFAULT_CAPACITY);
-    public HashMap<String, String> mRawObfuscatedClassMap = new HashMap<>(DEFAULT_CAPACITY);
-    public HashMap<String, String> mRawObfuscatedPackageMap = new HashMap<>(DEFAULT_CAPACITY);
-    private final Map<String, Map<String, Set<MethodInfo>>> mObfuscatedClassMethodMap = new HashMap<>();
-    private final Map<String, Map<String, Set<MethodInfo>>> mOriginalClassMethodMap = new HashMap<>();
+    private StringPool stringPool = new StringPool(DEFAULT_CAPACITY * 4);
+    private IntIntMap mObfuscatedRawClassMap = new IntIntMap(DEFAULT_CAPACITY);
+    private IntIntMap mRawObfuscatedClassMap = new IntIntMap(DEFAULT_CAPACITY);
+    private IntIntMap mRawObfuscatedPackageMap = new IntIntMap(DEFAULT_CAPACITY);
+
+    // method records, see processMethodMapping
+    private int methodCount;
+    private int[] methodClass = new int[DEFAULT_CAPACITY];
+    private int[] methodReturnType = new int[DEFAULT_CAPACITY];
+    private int[] methodName = new int[DEFAULT_CAPACITY];
+    private int[] methodArguments = new int[DEFAULT_CAPACITY];
+    private int[] methodNewClass = new int[DEFAULT_CAPACITY];
+    private int[] methodNewName = new int[DEFAULT_CAPACITY];
+    private MethodChains mObfuscatedClassMethodChains = new MethodChains();
+    private MethodChains mOriginalClassMethodChains = new MethodChains();
+
+    // method index, see buildIndex
+    private volatile boolean isIndexed;
+    private int[] methodObfuscatedReturnType;
+    private int[] methodObfuscatedArguments;
+    private LongIntMap mObfuscatedMethodIndex;
+    private LongIntMap mOriginalMethodIndex;
+    private final ConcurrentHashMap<String, DescInfo> mRawToObfuscatedDescCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DescInfo> mObfuscatedToRawDescCache = new ConcurrentHashMap<>();
 
     @Override
     public boolean processClassMapping(String className, String newClassName) {
-        this.mObfuscatedRawClassMap.put(newClassName, className);
-        this.mRawObfuscatedClassMap.put(className, newClassName);
+        int classId = stringPool.intern(className);
+        int newClassId = stringPool.intern(newClassName);
+        this.mObfuscatedRawClassMap.put(newClassId, classId);
+        this.mRawObfuscatedClassMap.put(classId, newClassId);
         int classNameLen = className.lastIndexOf('.');
         int newClassNameLen = newClassName.lastIndexOf('.');
         if (classNameLen > 0 && newClassNameLen > 0) {
-            this.mRawObfuscatedPackageMap.put(className.substring(0, classNameLen), newClassName.substring(0, newClassNameLen));
+            this.mRawObfuscatedPackageMap.put(stringPool.intern(className.substring(0, classNameLen)),
+                    stringPool.intern(newClassName.substring(0, newClassNameLen)));
         } else {
             Log.e(TAG, "class without package name: %s -> %s, pls check input mapping", className, newClassName);
         }
@@ -55,56 +87,168 @@ public class MappingCollector implements MappingProcessor {
 
     @Override
     public void processMethodMapping(String className, String methodReturnType, String methodName, String methodArguments, String newClassName, String newMethodName) {
-        newClassName = mRawObfuscatedClassMap.get(className);
-        Map<String, Set<MethodInfo>> methodMap = mObfuscatedClassMethodMap.get(newClassName);
-        if (methodMap == null) {
-            methodMap = new HashMap<>();
-            mObfuscatedClassMethodMap.put(newClassName, methodMap);
+        int classId = stringPool.intern(className);
+        int newClassId = mRawObfuscatedClassMap.get(classId, -1);
+        int nameId = stringPool.intern(methodName);
+        int newNameId = stringPool.intern(newMethodName);
+
+        if (methodCount == this.methodClass.length) {
+            int capacity = Math.max(DEFAULT_CAPACITY, methodCount * 2);
+            this.methodClass = Arrays.copyOf(this.methodClass, capacity);
+            this.methodReturnType = Arrays.copyOf(this.methodReturnType, capacity);
+            this.methodName = Arrays.copyOf(this.methodName, capacity);
+            this.methodArguments = Arrays.copyOf(this.methodArguments, capacity);
+            this.methodNewClass = Arrays.copyOf(this.methodNewClass, capacity);
+            this.methodNewName = Arrays.copyOf(this.methodNewName, capacity);
+        }
+        int index = methodCount++;
+        this.methodClass[index] = classId;
+        this.methodReturnType[index] = stringPool.intern(methodReturnType);
+        this.methodName[index] = nameId;
+        this.methodArguments[index] = stringPool.intern(methodArguments);
+        this.methodNewClass[index] = newClassId;
+        this.methodNewName[index] = newNameId;
+
+        mObfuscatedClassMethodChains.add(newClassId, newNameId, index);
+        mOriginalClassMethodChains.add(classId, nameId, index);
+        isIndexed = false;
+    }
+
+    /**
+     * Builds the method index, it must be called after parsing and before the collector is
+     * shared by several threads. Lookups build it on demand otherwise.
+     */
+    public synchronized void buildIndex() {
+        if (isIndexed) {
+            return;
         }
-        Set<MethodInfo> methodSet = methodMap.get(newMethodName);
-        if (methodSet == null) {
-            methodSet = new LinkedHashSet<>();
-            methodMap.put(newMethodName, methodSet);
+        methodObfuscatedReturnType = new int[methodCount];
+        methodObfuscatedArguments = new int[methodCount];
+        mObfuscatedMethodIndex = new LongIntMap(methodCount);
+        mOriginalMethodIndex = new LongIntMap(methodCount);
+        for (int index = 0; index < methodCount; index++) {
+            MethodInfo methodInfo = new MethodInfo(null, stringPool.get(methodReturnType[index]), null,
+                    stringPool.get(methodArguments[index]));
+            obfuscatedMethodInfo(methodInfo);
+            methodObfuscatedReturnType[index] = stringPool.intern(methodInfo.getOriginalType());
+            methodObfuscatedArguments[index] = stringPool.intern(methodInfo.getOriginalArguments());
         }
-        methodSet.add(new MethodInfo(className, methodReturnType, methodName, methodArguments));
+        indexChains(mObfuscatedClassMethodChains, methodArguments, mObfuscatedMethodIndex);
+        indexChains(mOriginalClassMethodChains, methodObfuscatedArguments, mOriginalMethodIndex);
+        isIndexed = true;
+    }
 
+    /**
+     * Maps (chain head, arguments) to the first method of the chain with these arguments.
+     */
+    private void indexChains(MethodChains chains, int[] arguments, LongIntMap index) {
+        for (int head = 0; head < methodCount; head++) {
+            if (!chains.isHead(head)) {
+                continue;
+            }
+            for (int method = head; method >= 0; method = chains.next(method)) {
+                long key = LongIntMap.key(head, arguments[method]);
+                if (index.get(key) < 0) {
+                    index.put(key, method);
+                }
+            }
+        }
+    }
 
-        Map<String, Set<MethodInfo>> methodMap2 = mOriginalClassMethodMap.get(className);
-        if (methodMap2 == null) {
-            methodMap2 = new HashMap<>();
-            mOriginalClassMethodMap.put(className, methodMap2);
+    /**
+     * @return the first method of the chain starting at {@code head} whose return type and
+     * arguments are {@code returnType} and {@code arguments}, or -1.
+     */
+    private int findMethod(MethodChains chains, int head, LongIntMap index, int[] returnTypes, int[] arguments,
+                           String returnType, String methodArguments) {
+        if (head < 0) {
+            return -1;
+        }
+        int returnTypeId = stringPool.find(returnType);
+        int argumentsId = stringPool.find(methodArguments);
+        if (returnTypeId < 0 || argumentsId < 0) {
+            return -1;
         }
-        Set<MethodInfo> methodSet2 = methodMap2.get(methodName);
-        if (methodSet2 == null) {
-            methodSet2 = new LinkedHashSet<>();
-            methodMap2.put(methodName, methodSet2);
+        for (int method = index.get(LongIntMap.key(head, argumentsId)); method >= 0; method = chains.next(method)) {
+            if (returnTypes[method] == returnTypeId && arguments[method] == argumentsId) {
+                return method;
+            }
         }
-        methodSet2.add(new MethodInfo(newClassName, methodReturnType, newMethodName, methodArguments));
+        return -1;
+    }
 
+    /**
+     * Writes the collected mappings, see {@link MappingSnapshot}.
+     */
+    void writeTo(DataOutputStream os) throws IOException {
+        // the index interns the translated types, build it before the pool is written
+        buildIndex();
+        stringPool.writeTo(os);
+        mObfuscatedRawClassMap.writeTo(os);
+        mRawObfuscatedClassMap.writeTo(os);
+        mRawObfuscatedPackageMap.writeTo(os);
+        os.writeInt(methodCount);
+        StringPool.writeInts(os, methodClass, methodCount);
+        StringPool.writeInts(os, methodReturnType, methodCount);
+        StringPool.writeInts(os, methodName, methodCount);
+        StringPool.writeInts(os, methodArguments, methodCount);
+        StringPool.writeInts(os, methodNewClass, methodCount);
+        StringPool.writeInts(os, methodNewName, methodCount);
+        mObfuscatedClassMethodChains.writeTo(os, methodCount);
+        mOriginalClassMethodChains.writeTo(os, methodCount);
+        StringPool.writeInts(os, methodObfuscatedReturnType, methodCount);
+        StringPool.writeInts(os, methodObfuscatedArguments, methodCount);
+        mObfuscatedMethodIndex.writeTo(os);
+        mOriginalMethodIndex.writeTo(os);
+    }
+
+    /**
+     * Replaces the collected mappings with the ones written by {@link #writeTo}.
+     */
+    void readFrom(ByteBuffer buffer) {
+        stringPool = StringPool.readFrom(buffer);
+        mObfuscatedRawClassMap = IntIntMap.readFrom(buffer);
+        mRawObfuscatedClassMap = IntIntMap.readFrom(buffer);
+        mRawObfuscatedPackageMap = IntIntMap.readFrom(buffer);
+        methodCount = buffer.getInt();
+        methodClass = StringPool.readInts(buffer, buffer.getInt());
+        methodReturnType = StringPool.readInts(buffer, buffer.getInt());
+        methodName = StringPool.readInts(buffer, buffer.getInt());
+        methodArguments = StringPool.readInts(buffer, buffer.getInt());
+        methodNewClass = StringPool.readInts(buffer, buffer.getInt());
+        methodNewName = StringPool.readInts(buffer, buffer.getInt());
+        mObfuscatedClassMethodChains = MethodChains.readFrom(buffer);
+        mOriginalClassMethodChains = MethodChains.readFrom(buffer);
+        methodObfuscatedReturnType = StringPool.readInts(buffer, buffer.getInt());
+        methodObfuscatedArguments = StringPool.readInts(buffer, buffer.getInt());
+        mObfuscatedMethodIndex = LongIntMap.readFrom(buffer);
+        mOriginalMethodIndex = LongIntMap.readFrom(buffer);
+        mRawToObfuscatedDescCache.clear();
+        mObfuscatedToRawDescCache.clear();
+        isIndexed = true;
     }
 
     public String originalClassName(String proguardClassName, String defaultClassName) {
-        if (mObfuscatedRawClassMap.containsKey(proguardClassName)) {
-            return mObfuscatedRawClassMap.get(proguardClassName);
-        } else {
-            return defaultClassName;
-        }
+        String className = obfuscatedToRaw(proguardClassName);
+        return className != null ? className : defaultClassName;
     }
 
     public String proguardClassName(String originalClassName, String defaultClassName) {
-        if (mRawObfuscatedClassMap.containsKey(originalClassName)) {
-            return mRawObfuscatedClassMap.get(originalClassName);
-        } else {
-            return defaultClassName;
-        }
+        String className = rawToObfuscated(originalClassName);
+        return className != null ? className : defaultClassName;
     }
 
     public String proguardPackageName(String originalPackage, String defaultPackage) {
-        if (mRawObfuscatedPackageMap.containsKey(originalPackage)) {
-            return mRawObfuscatedPackageMap.get(originalPackage);
-        } else {
-            return defaultPackage;
-        }
+        int packageId = mRawObfuscatedPackageMap.get(stringPool.find(originalPackage), -1);
+        return packageId >= 0 ? stringPool.get(packageId) : defaultPackage;
+    }
+
+    private String obfuscatedToRaw(String obfuscatedClassName) {
+        return stringPool.get(mObfuscatedRawClassMap.get(stringPool.find(obfuscatedClassName), -1));
+    }
+
+    private String rawToObfuscated(String originalClassName) {
+        return stringPool.get(mRawObfuscatedClassMap.get(stringPool.find(originalClassName), -1));
     }
 
     /**
@@ -116,23 +260,22 @@ public class MappingCollector implements MappingProcessor {
      * @return
      */
     public MethodInfo originalMethodInfo(String obfuscatedClassName, String obfuscatedMethodName, String obfuscatedMethodDesc) {
-        DescInfo descInfo = parseMethodDesc(obfuscatedMethodDesc, false);
+        if (!isIndexed) {
+            buildIndex();
+        }
+        DescInfo descInfo = translateMethodDesc(obfuscatedMethodDesc, false);
 
         // obfuscated name -> original method names.
-        Map<String, Set<MethodInfo>> methodMap = mObfuscatedClassMethodMap.get(obfuscatedClassName);
-        if (methodMap != null) {
-            Set<MethodInfo> methodSet = methodMap.get(obfuscatedMethodName);
-            if (methodSet != null) {
-                // Find all matching methods.
-                Iterator<MethodInfo> methodInfoIterator = methodSet.iterator();
-                while (methodInfoIterator.hasNext()) {
-                    MethodInfo methodInfo = methodInfoIterator.next();
-                    if (methodInfo.matches(descInfo.returnType, descInfo.arguments)) {
-                        MethodInfo newMethodInfo = new MethodInfo(methodInfo);
-                        newMethodInfo.setDesc(descInfo.desc);
-                        return newMethodInfo;
-                    }
-                }
+        int classId = stringPool.find(obfuscatedClassName);
+        int nameId = stringPool.find(obfuscatedMethodName);
+        if (nameId >= 0 && (classId >= 0 || obfuscatedClassName == null)) {
+            int method = findMethod(mObfuscatedClassMethodChains, mObfuscatedClassMethodChains.first(classId, nameId),
+                    mObfuscatedMethodIndex, methodReturnType, methodArguments, descInfo.returnType, descInfo.arguments);
+            if (method >= 0) {
+                MethodInfo methodInfo = new MethodInfo(stringPool.get(methodClass[method]), stringPool.get(methodReturnType[method]),
+                        stringPool.get(methodName[method]), stringPool.get(methodArguments[method]));
+                methodInfo.setDesc(descInfo.desc);
+                return methodInfo;
             }
         }
 
@@ -151,24 +294,22 @@ public class MappingCollector implements MappingProcessor {
      * @return
      */
     public MethodInfo obfuscatedMethodInfo(String originalClassName, String originalMethodName, String originalMethodDesc) {
-        DescInfo descInfo = parseMethodDesc(originalMethodDesc, true);
+        if (!isIndexed) {
+            buildIndex();
+        }
+        DescInfo descInfo = translateMethodDesc(originalMethodDesc, true);
 
         // Class name -> obfuscated method names.
-        Map<String, Set<MethodInfo>> methodMap = mOriginalClassMethodMap.get(originalClassName);
-        if (methodMap != null) {
-            Set<MethodInfo> methodSet = methodMap.get(originalMethodName);
-            if (null != methodSet) {
-                // Find all matching methods.
-                Iterator<MethodInfo> methodInfoIterator = methodSet.iterator();
-                while (methodInfoIterator.hasNext()) {
-                    MethodInfo methodInfo = methodInfoIterator.next();
-                    MethodInfo newMethodInfo = new MethodInfo(methodInfo);
-                    obfuscatedMethodInfo(newMethodInfo);
-                    if (newMethodInfo.matches(descInfo.returnType, descInfo.arguments)) {
-                        newMethodInfo.setDesc(descInfo.desc);
-                        return newMethodInfo;
-                    }
-                }
+        int classId = stringPool.find(originalClassName);
+        int nameId = stringPool.find(originalMethodName);
+        if (classId >= 0 && nameId >= 0) {
+            int method = findMethod(mOriginalClassMethodChains, mOriginalClassMethodChains.first(classId, nameId),
+                    mOriginalMethodIndex, methodObfuscatedReturnType, methodObfuscatedArguments, descInfo.returnType, descInfo.arguments);
+            if (method >= 0) {
+                MethodInfo newMethodInfo = new MethodInfo(stringPool.get(methodNewClass[method]), stringPool.get(methodObfuscatedReturnType[method]),
+                        stringPool.get(methodNewName[method]), stringPool.get(methodObfuscatedArguments[method]));
+                newMethodInfo.setDesc(descInfo.desc);
+                return newMethodInfo;
             }
         }
         MethodInfo defaultMethodInfo = MethodInfo.deFault();
@@ -183,8 +324,9 @@ public class MappingCollector implements MappingProcessor {
         StringBuffer stringBuffer = new StringBuffer();
         for (String str : args) {
             String key = str.replace("[", "").replace("]", "");
-            if (mRawObfuscatedClassMap.containsKey(key)) {
-                stringBuffer.append(str.replace(key, mRawObfuscatedClassMap.get(key)));
+            String obfuscatedKey = rawToObfuscated(key);
+            if (obfuscatedKey != null) {
+                stringBuffer.append(str.replace(key, obfuscatedKey));
             } else {
                 stringBuffer.append(str);
             }
@@ -195,13 +337,24 @@ public class MappingCollector implements MappingProcessor {
         }
         String methodReturnType = methodInfo.getOriginalType();
         String key = methodReturnType.replace("[", "").replace("]", "");
-        if (mRawObfuscatedClassMap.containsKey(key)) {
-            methodReturnType = methodReturnType.replace(key, mRawObfuscatedClassMap.get(key));
+        String obfuscatedKey = rawToObfuscated(key);
+        if (obfuscatedKey != null) {
+            methodReturnType = methodReturnType.replace(key, obfuscatedKey);
         }
         methodInfo.setOriginalArguments(stringBuffer.toString());
         methodInfo.setOriginalType(methodReturnType);
     }
 
+    private DescInfo translateMethodDesc(String desc, boolean isRawToObfuscated) {
+        ConcurrentHashMap<String, DescInfo> cache = isRawToObfuscated ? mRawToObfuscatedDescCache : mObfuscatedToRawDescCache;
+        DescInfo descInfo = cache.get(desc);
+        if (descInfo == null) {
+            descInfo = parseMethodDesc(desc, isRawToObfuscated);
+            cache.put(desc, descInfo);
+        }
+        return descInfo;
+    }
+
     /**
      * parse method desc
      *
@@ -218,17 +371,19 @@ public class MappingCollector implements MappingProcessor {
         for (Type type : argsObj) {
             String key = type.getClassName().replace("[", "").replace("]", "");
             if (isRawToObfuscated) {
-                if (mRawObfuscatedClassMap.containsKey(key)) {
-                    argumentsBuffer.append(type.getClassName().replace(key, mRawObfuscatedClassMap.get(key)));
-                    descBuffer.append(type.toString().replace(key, mRawObfuscatedClassMap.get(key)));
+                String mappedKey = rawToObfuscated(key);
+                if (mappedKey != null) {
+                    argumentsBuffer.append(type.getClassName().replace(key, mappedKey));
+                    descBuffer.append(type.toString().replace(key, mappedKey));
                 } else {
                     argumentsBuffer.append(type.getClassName());
                     descBuffer.append(type.toString());
                 }
             } else {
-                if (mObfuscatedRawClassMap.containsKey(key)) {
-                    argumentsBuffer.append(type.getClassName().replace(key, mObfuscatedRawClassMap.get(key)));
-                    descBuffer.append(type.toString().replace(key, mObfuscatedRawClassMap.get(key)));
+                String mappedKey = obfuscatedToRaw(key);
+                if (mappedKey != null) {
+                    argumentsBuffer.append(type.getClassName().replace(key, mappedKey));
+                    descBuffer.append(type.toString().replace(key, mappedKey));
                 } else {
                     argumentsBuffer.append(type.getClassName());
                     descBuffer.append(type.toString());
@@ -246,18 +401,20 @@ public class MappingCollector implements MappingProcessor {
         }
         if (isRawToObfuscated) {
             String key = returnObj.getClassName().replace("[", "").replace("]", "");
-            if (mRawObfuscatedClassMap.containsKey(key)) {
-                descInfo.setReturnType(returnObj.getClassName().replace(key, mRawObfuscatedClassMap.get(key)));
-                descBuffer.append(returnObj.toString().replace(key, mRawObfuscatedClassMap.get(key)));
+            String mappedKey = rawToObfuscated(key);
+            if (mappedKey != null) {
+                descInfo.setReturnType(returnObj.getClassName().replace(key, mappedKey));
+                descBuffer.append(returnObj.toString().replace(key, mappedKey));
             } else {
                 descInfo.setReturnType(returnObj.getClassName());
                 descBuffer.append(returnObj.toString());
             }
         } else {
             String key = returnObj.getClassName().replace("[", "").replace("]", "");
-            if (mObfuscatedRawClassMap.containsKey(key)) {
-                descInfo.setReturnType(returnObj.getClassName().replace(key, mObfuscatedRawClassMap.get(key)));
-                descBuffer.append(returnObj.toString().replace(key, mObfuscatedRawClassMap.get(key)));
+            String mappedKey = obfuscatedToRaw(key);
+            if (mappedKey != null) {
+                descInfo.setReturnType(returnObj.getClassName().replace(key, mappedKey));
+                descBuffer.append(returnObj.toString().replace(key, mappedKey));
             } else {
                 descInfo.setReturnType(returnObj.getClassName());
                 descBuffer.append(returnObj.toString());
@@ -274,6 +431,67 @@ public class MappingCollector implements MappingProcessor {
         return descInfo;
     }
 
+    /**
+     * Method records chained in insertion order per (class id, method name id).
+     */
+    private static class MethodChains {
+        private final LongIntMap heads;
+        private int[] next = new int[DEFAULT_CAPACITY];
+        // last record of a chain for the head records, -1 for the others
+        private int[] tail = new int[DEFAULT_CAPACITY];
+
+        MethodChains() {
+            this(new LongIntMap(DEFAULT_CAPACITY));
+        }
+
+        private MethodChains(LongIntMap heads) {
+            this.heads = heads;
+        }
+
+        void add(int classId, int nameId, int index) {
+            if (index >= next.length) {
+                next = Arrays.copyOf(next, Math.max(index + 1, next.length * 2));
+                tail = Arrays.copyOf(tail, next.length);
+            }
+            next[index] = -1;
+            tail[index] = -1;
+            long key = LongIntMap.key(classId, nameId);
+            int head = heads.get(key);
+            if (head < 0) {
+                heads.put(key, index);
+                tail[index] = index;
+            } else {
+                next[tail[head]] = index;
+                tail[head] = index;
+            }
+        }
+
+        void writeTo(DataOutputStream os, int count) throws IOException {
+            heads.writeTo(os);
+            StringPool.writeInts(os, next, count);
+            StringPool.writeInts(os, tail, count);
+        }
+
+        static MethodChains readFrom(ByteBuffer buffer) {
+            MethodChains chains = new MethodChains(LongIntMap.readFrom(buffer));
+            chains.next = StringPool.readInts(buffer, buffer.getInt());
+            chains.tail = StringPool.readInts(buffer, buffer.getInt());
+            return chains;
+        }
+
+        boolean isHead(int index) {
+            return tail[index] >= 0;
+        }
+
+        int first(int classId, int nameId) {
+            return heads.get(LongIntMap.key(classId, nameId));
+        }
+
+        int next(int index) {
+            return next[index];
+        }
+    }
+
     /**
      * about method desc info
      */
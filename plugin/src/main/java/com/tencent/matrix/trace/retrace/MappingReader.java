@@ -20,9 +20,19 @@ import com.tencent.matrix.javalib.util.Log;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Created by caichongyang on 2017/6/3.
@@ -35,6 +45,8 @@ public class MappingReader {
     private final static String LEFT_PUNC = "(";
     private final static String RIGHT_PUNC = ")";
     private final static String DOT = ".";
+    private final static long PARALLEL_FILE_SIZE = 8 * 1024 * 1024;
+    private final static int MIN_CHUNK_SIZE = 2 * 1024 * 1024;
     private final File proguardMappingFile;
 
     public MappingReader(File proguardMappingFile) {
@@ -42,10 +54,167 @@ public class MappingReader {
     }
 
     /**
-     * Reads the mapping file
+     * Reads the mapping file.
+     * <p>
+     * When called from a fork/join pool, a large file is memory-mapped and split at class
+     * headers into chunks which are parsed in parallel. The parsed mappings are then handed to
+     * {@code mappingProcessor} on the calling thread in the file order, so it does not need to
+     * be thread-safe.
+     * </p>
      */
     public void read(MappingProcessor mappingProcessor) throws IOException {
-        LineNumberReader reader = new LineNumberReader(new BufferedReader(new FileReader(proguardMappingFile)));
+        long start = System.currentTimeMillis();
+        long length = proguardMappingFile.length();
+        if (length >= PARALLEL_FILE_SIZE && length <= Integer.MAX_VALUE
+                && ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool().getParallelism() > 1) {
+            readParallel(mappingProcessor);
+        } else {
+            readSequential(mappingProcessor);
+        }
+        long cost = Math.max(1, System.currentTimeMillis() - start);
+        Log.i(TAG, "[read] %s, size:%s cost:%sms throughput:%.1fMB/s", proguardMappingFile.getName(), length, cost,
+                length * 1000f / cost / 1024 / 1024);
+    }
+
+    private void readParallel(MappingProcessor mappingProcessor) throws IOException {
+        MappedByteBuffer buffer;
+        FileChannel channel = FileChannel.open(proguardMappingFile.toPath(), StandardOpenOption.READ);
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+
+        int size = buffer.limit();
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, size / (Runtime.getRuntime().availableProcessors() * 4));
+        List<ParseChunkTask> chunks = new ArrayList<>();
+        int chunkStart = 0;
+        while (chunkStart < size) {
+            int chunkEnd = nextClassHeader(buffer, Math.min(size, chunkStart + chunkSize));
+            chunks.add(new ParseChunkTask(buffer, chunkStart, chunkEnd));
+            chunkStart = chunkEnd;
+        }
+        ForkJoinTask.invokeAll(chunks);
+
+        for (ParseChunkTask chunk : chunks) {
+            boolean isClassAccepted = false;
+            for (String[] mapping : chunk.join()) {
+                if (mapping.length == 2) {
+                    isClassAccepted = mappingProcessor.processClassMapping(mapping[0], mapping[1]);
+                } else if (isClassAccepted) {
+                    mappingProcessor.processMethodMapping(mapping[0], mapping[1], mapping[2], mapping[3], mapping[4], mapping[5]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the offset of the first class header line at or after {@code from}, or the buffer size.
+     * Class headers are the only lines starting in the first column which end with {@link #SPLIT}.
+     */
+    private static int nextClassHeader(ByteBuffer buffer, int from) {
+        int size = buffer.limit();
+        int lineStart = from;
+        if (lineStart > 0 && buffer.get(lineStart - 1) != '\n') {
+            lineStart = nextLine(buffer, lineStart);
+        }
+        while (lineStart < size) {
+            int lineEnd = nextLine(buffer, lineStart);
+            byte first = buffer.get(lineStart);
+            if (first != ' ' && first != '\t' && first != '#' && first != '\r' && first != '\n') {
+                int last = lineEnd - 1;
+                while (last > lineStart && Character.isWhitespace(buffer.get(last))) {
+                    last--;
+                }
+                if (buffer.get(last) == ':') {
+                    return lineStart;
+                }
+            }
+            lineStart = lineEnd;
+        }
+        return size;
+    }
+
+    private static int nextLine(ByteBuffer buffer, int from) {
+        int size = buffer.limit();
+        for (int i = from; i < size; i++) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Parses the lines of {@code [start, end)} into class mappings (2 elements) and method
+     * mappings (6 elements, the arguments of {@link MappingProcessor#processMethodMapping}).
+     */
+    private class ParseChunkTask extends RecursiveTask<List<String[]>> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int end;
+
+        ParseChunkTask(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<String[]> compute() {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(start);
+            slice.limit(end);
+            String content = StandardCharsets.UTF_8.decode(slice).toString();
+
+            final List<String[]> mappings = new ArrayList<>();
+            MappingProcessor recorder = new MappingProcessor() {
+                @Override
+                public boolean processClassMapping(String className, String newClassName) {
+                    mappings.add(new String[]{className, newClassName});
+                    return true;
+                }
+
+                @Override
+                public void processMethodMapping(String className, String methodReturnType, String methodName,
+                                                 String methodArguments, String newClassName, String newMethodName) {
+                    mappings.add(new String[]{className, methodReturnType, methodName, methodArguments, newClassName, newMethodName});
+                }
+            };
+            String className = null;
+            int lineStart = 0;
+            int length = content.length();
+            while (lineStart < length) {
+                int lineEnd = content.indexOf('\n', lineStart);
+                if (lineEnd < 0) {
+                    lineEnd = length;
+                }
+                className = parseLine(content.substring(lineStart, lineEnd).trim(), className, recorder);
+                lineStart = lineEnd + 1;
+            }
+            return mappings;
+        }
+    }
+
+    private String parseLine(String line, String className, MappingProcessor mappingProcessor) {
+        if (!line.startsWith("#")) {
+            // a class mapping
+            if (line.endsWith(SPLIT)) {
+                className = parseClassMapping(line, mappingProcessor);
+            } else if (className != null) { // a class member mapping
+                parseClassMemberMapping(className, line, mappingProcessor);
+            }
+        } else {
+            Log.i(TAG, "comment:# %s", line);
+        }
+        return className;
+    }
+
+    private void readSequential(MappingProcessor mappingProcessor) throws IOException {
+        LineNumberReader reader = new LineNumberReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(proguardMappingFile), StandardCharsets.UTF_8)));
         try {
             String className = null;
             // Read the class and class member mappings.
@@ -54,17 +223,7 @@ public class MappingReader {
                 if (line == null) {
                     break;
                 }
-                line = line.trim();
-                if (!line.startsWith("#")) {
-                    // a class mapping
-                    if (line.endsWith(SPLIT)) {
-                        className = parseClassMapping(line, mappingProcessor);
-                    } else if (className != null) { // a class member mapping
-                        parseClassMemberMapping(className, line, mappingProcessor);
-                    }
-                } else {
-                    Log.i(TAG, "comment:# %s", line);
-                }
+                className = parseLine(line.trim(), className, mappingProcessor);
             }
         } catch (IOException err) {
             throw new IOException("Can't read mapping file", err);
@@ -0,0 +1,103 @@
+package com.tencent.matrix.trace.retrace;
+
+import com.tencent.matrix.javalib.util.FileUtil;
+import com.tencent.matrix.javalib.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of a {@link MappingCollector}, keyed by the content of the mapping file it
+ * was parsed from.
+ * <p>
+ * The header holds the size and SHA-1 of the mapping file, the snapshot is only used when both
+ * match. Times are not trusted, a mapping rewritten within their granularity keeps them. Loading maps the snapshot and bulk reads the int tables, strings are only decoded
+ * when a lookup needs them.
+ * </p>
+ */
+public final class MappingSnapshot {
+
+    private static final String TAG = "Matrix.MappingSnapshot";
+    private static final int MAGIC = 0x4d4d5053; // MMPS
+    private static final int VERSION = 3;
+
+    private MappingSnapshot() {
+    }
+
+    /**
+     * Fills {@code mappingCollector} from {@code snapshotFile} if it was written for the current
+     * content of {@code mappingFile}.
+     *
+     * @return whether the snapshot was loaded.
+     */
+    public static boolean read(File snapshotFile, File mappingFile, MappingCollector mappingCollector) {
+        if (!snapshotFile.isFile() || !mappingFile.isFile()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            MappedByteBuffer buffer;
+            FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.i(TAG, "[read] unknown snapshot format %s", snapshotFile);
+                return false;
+            }
+            long size = buffer.getLong();
+            byte[] hash = new byte[buffer.getInt()];
+            buffer.get(hash);
+            if (size != mappingFile.length()) {
+                return false;
+            }
+            if (!new String(hash, StandardCharsets.US_ASCII).equals(FileUtil.sha1(mappingFile))) {
+                Log.i(TAG, "[read] %s changed, snapshot is stale", mappingFile.getName());
+                return false;
+            }
+            mappingCollector.readFrom(buffer);
+            Log.i(TAG, "[read] load snapshot %s cost:%sms", snapshotFile, System.currentTimeMillis() - start);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "[read] can not read snapshot %s e:%s", snapshotFile, e.toString());
+            return false;
+        }
+    }
+
+    public static void write(File snapshotFile, File mappingFile, MappingCollector mappingCollector) {
+        long start = System.currentTimeMillis();
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            snapshotFile.getAbsoluteFile().getParentFile().mkdirs();
+            long size = mappingFile.length();
+            byte[] hash = FileUtil.sha1(mappingFile).getBytes(StandardCharsets.US_ASCII);
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                os.writeLong(size);
+                os.writeInt(hash.length);
+                os.write(hash);
+                mappingCollector.writeTo(os);
+            } finally {
+                os.close();
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Log.i(TAG, "[write] %s size:%s cost:%sms", snapshotFile, snapshotFile.length(), System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            Log.w(TAG, "[write] can not write snapshot %s e:%s", snapshotFile, e.toString());
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.tencent.matrix.trace.retrace;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns strings to dense int ids, {@code null} is always id {@code -1}.
+ * <p>
+ * Writes must not run concurrently, reads are safe once the pool is published.
+ * A pool read from a snapshot keeps its strings encoded in the snapshot buffer and
+ * only decodes them when they are first needed.
+ * </p>
+ */
+final class StringPool {
+
+    private String[] values;
+    private int[] table;
+    private int size;
+    private ByteBuffer encoded;
+    private int[] encodedOffsets;
+
+    StringPool(int expectedSize) {
+        values = new String[Math.max(16, expectedSize)];
+        table = new int[tableSizeFor(values.length)];
+    }
+
+    int intern(String value) {
+        if (value == null) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        int slot = mix(value.hashCode()) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (get(id).equals(value)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int id = size++;
+        values[id] = value;
+        table[slot] = id + 1;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of {@code value}, or -1 if it was never interned.
+     */
+    int find(String value) {
+        if (value == null) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        int slot = mix(value.hashCode()) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (get(id).equals(value)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    String get(int id) {
+        if (id < 0) {
+            return null;
+        }
+        String value = values[id];
+        if (value == null) {
+            ByteBuffer bytes = encoded.duplicate();
+            bytes.limit(encodedOffsets[id + 1]);
+            bytes.position(encodedOffsets[id]);
+            value = StandardCharsets.UTF_8.decode(bytes).toString();
+            values[id] = value;
+        }
+        return value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        int[] newTable = new int[table.length * 2];
+        int mask = newTable.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(get(id).hashCode()) & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = id + 1;
+        }
+        table = newTable;
+    }
+
+    void writeTo(DataOutputStream os) throws IOException {
+        byte[][] bytes = new byte[size][];
+        int offset = 0;
+        os.writeInt(size);
+        os.writeInt(0);
+        for (int id = 0; id < size; id++) {
+            bytes[id] = get(id).getBytes(StandardCharsets.UTF_8);
+            offset += bytes[id].length;
+            os.writeInt(offset);
+        }
+        writeInts(os, table, table.length);
+        for (byte[] value : bytes) {
+            os.write(value);
+        }
+    }
+
+    static StringPool readFrom(ByteBuffer buffer) {
+        StringPool pool = new StringPool(0);
+        pool.size = buffer.getInt();
+        pool.encodedOffsets = readInts(buffer, pool.size + 1);
+        pool.table = readInts(buffer, buffer.getInt());
+        pool.values = new String[Math.max(16, pool.size)];
+        pool.encoded = buffer.slice();
+        buffer.position(buffer.position() + pool.encodedOffsets[pool.size]);
+        return pool;
+    }
+
+    static void writeInts(DataOutputStream os, int[] values, int length) throws IOException {
+        os.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            os.writeInt(values[i]);
+        }
+    }
+
+    static int[] readInts(ByteBuffer buffer, int length) {
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + length * 4);
+        return values;
+    }
+
+    static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    static int tableSizeFor(int size) {
+        int capacity = 16;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
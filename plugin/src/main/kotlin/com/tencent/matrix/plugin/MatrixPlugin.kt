@@ -16,7 +16,7 @@
 
 package com.tencent.matrix.plugin
 
-import com.android.build.gradle.AppExtension
+import com.android.build.gradle.BaseExtension
 import com.tencent.matrix.plugin.extension.MatrixRemoveUnusedResExtension
 import com.tencent.matrix.plugin.task.MatrixTasksManager
 import com.tencent.matrix.trace.extension.MatrixExtension
@@ -30,18 +30,36 @@ class MatrixPlugin : Plugin<Project> {
     companion object {
         const val TAG = "Matrix.Plugin"
         lateinit var mMatrixExtension: MatrixExtension
+
+        /**
+         * The extension shared by all modules of the build: the application's one, or the one of
+         * the first module by path in builds without an application.
+         */
+        private fun resolveMatrixExtension(project: Project): MatrixExtension {
+            val modules = project.rootProject.allprojects
+                    .filter { it.extensions.findByType(MatrixExtension::class.java) != null }
+                    .sortedBy { it.path }
+            val owner = modules.firstOrNull { it.plugins.hasPlugin("com.android.application") } ?: modules.first()
+            return owner.extensions.getByType(MatrixExtension::class.java)
+        }
     }
 
     override fun apply(project: Project) {
 
         val matrix = project.extensions.create("matrix", MatrixExtension::class.java)
-        mMatrixExtension=matrix
+        val isLibrary = project.plugins.hasPlugin("com.android.library")
+        if (isLibrary) {
+            // the application may be configured after the library, only resolve it once all modules are
+            project.gradle.projectsEvaluated { mMatrixExtension = resolveMatrixExtension(project) }
+        } else {
+            mMatrixExtension = matrix
+        }
 
         val traceExtension = (matrix as ExtensionAware).extensions.create("trace", MatrixTraceExtension::class.java)
         val removeUnusedResourcesExtension = matrix.extensions.create("removeUnusedResources", MatrixRemoveUnusedResExtension::class.java)
 
-        if (!project.plugins.hasPlugin("com.android.application")) {
-            throw GradleException("Matrix Plugin, Android Application plugin required.")
+        if (!project.plugins.hasPlugin("com.android.application") && !isLibrary) {
+            throw GradleException("Matrix Plugin, Android Application or Library plugin required.")
         }
 
         project.afterEvaluate {
@@ -49,7 +67,7 @@ class MatrixPlugin : Plugin<Project> {
         }
 
         MatrixTasksManager().createMatrixTasks(
-                project.extensions.getByName("android") as AppExtension,
+                project.extensions.getByName("android") as BaseExtension,
                 project,
                 traceExtension,
                 removeUnusedResourcesExtension
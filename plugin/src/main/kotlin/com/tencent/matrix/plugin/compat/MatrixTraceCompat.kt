@@ -16,7 +16,7 @@
 
 package com.tencent.matrix.plugin.compat
 
-import com.android.build.gradle.AppExtension
+import com.android.build.gradle.BaseExtension
 import com.tencent.matrix.javalib.util.Log
 import com.tencent.matrix.plugin.trace.MatrixTraceInjection
 import com.tencent.matrix.trace.extension.ITraceSwitchListener
@@ -43,7 +43,7 @@ class MatrixTraceCompat : ITraceSwitchListener {
         traceInjection?.onTraceEnabled(enable)
     }
 
-    fun inject(appExtension: AppExtension, project: Project, extension: MatrixTraceExtension) {
+    fun inject(appExtension: BaseExtension, project: Project, extension: MatrixTraceExtension) {
         when {
             VersionsCompat.lessThan(AGPVersion.AGP_3_6_0) ->
                 legacyInject(appExtension, project, extension)
@@ -60,7 +60,7 @@ class MatrixTraceCompat : ITraceSwitchListener {
         }
     }
 
-    private fun legacyInject(appExtension: AppExtension,
+    private fun legacyInject(appExtension: BaseExtension,
                              project: Project,
                              extension: MatrixTraceExtension) {
         Log.e("MatrixTraceCompat", "legacyInject=========")
@@ -16,7 +16,7 @@
 
 package com.tencent.matrix.plugin.task
 
-import com.android.build.gradle.AppExtension
+import com.android.build.gradle.BaseExtension
 import com.tencent.matrix.plugin.compat.MatrixTraceCompat
 import com.tencent.matrix.plugin.extension.MatrixRemoveUnusedResExtension
 import com.tencent.matrix.trace.extension.MatrixTraceExtension
@@ -28,7 +28,7 @@ class MatrixTasksManager {
         const val TAG = "Matrix.TasksManager"
     }
 
-    fun createMatrixTasks(android: AppExtension,
+    fun createMatrixTasks(android: BaseExtension,
                           project: Project,
                           traceExtension: MatrixTraceExtension,
                           removeUnusedResourcesExtension: MatrixRemoveUnusedResExtension) {
@@ -39,13 +39,13 @@ class MatrixTasksManager {
     }
 
     private fun createMatrixTraceTask(
-            android: AppExtension,
+            android: BaseExtension,
             project: Project,
             traceExtension: MatrixTraceExtension) {
         MatrixTraceCompat().inject(android, project, traceExtension)
     }
     private fun createRemoveUnusedResourcesTask(
-            android: AppExtension,
+            android: BaseExtension,
             project: Project,
            removeUnusedResourcesExtension: MatrixRemoveUnusedResExtension) {
 //
@@ -21,25 +21,39 @@ import com.android.build.gradle.internal.tasks.DexArchiveBuilderTask
 import com.android.builder.model.AndroidProject.FD_OUTPUTS
 import com.google.common.base.Joiner
 import com.tencent.matrix.javalib.util.Log
+import com.tencent.matrix.javalib.util.Util
+import com.tencent.matrix.plugin.MatrixPlugin
 import com.tencent.matrix.plugin.compat.CreationConfig
 import com.tencent.matrix.plugin.trace.MatrixTrace
+import com.tencent.matrix.trace.TraceClassLoader
 import com.tencent.matrix.trace.extension.MatrixTraceExtension
 import org.gradle.api.Action
 import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
 import org.gradle.api.Project
 import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
 import org.gradle.api.file.FileType
 import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.MapProperty
 import org.gradle.api.provider.Property
 import org.gradle.api.tasks.*
 import org.gradle.work.ChangeType
 import org.gradle.work.Incremental
 import org.gradle.work.InputChanges
+import org.gradle.workers.WorkerExecutor
 import java.io.File
 import java.util.concurrent.Callable
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutionException
+import javax.inject.Inject
 
+/**
+ * Cacheable and relocatable: every input is content or relative path based, and everything the
+ * transform writes is a declared output or local state, so results can be reused across checkouts.
+ */
+@CacheableTask
 abstract class MatrixTraceTask : DefaultTask() {
     companion object {
         private const val TAG: String = "Matrix.TraceTask"
@@ -53,45 +67,105 @@ abstract class MatrixTraceTask : DefaultTask() {
                 "traceClassOut",
                 variantDirName)
         }
+
+        /**
+         * Jars or directories the aop visitor classes are loaded from, when they come from the
+         * build script classpath. Visitors found in the traced classes are covered by classInputs.
+         */
+        fun getAopVisitorClasspath(aopVisitors: Array<String>?): List<File> {
+            val classLoader = MatrixTraceTask::class.java.classLoader
+            return aopVisitors.orEmpty().mapNotNull { className ->
+                try {
+                    val location = Class.forName(className, false, classLoader).protectionDomain?.codeSource?.location
+                    location?.let { File(it.toURI()) }
+                } catch (e: ClassNotFoundException) {
+                    null
+                }
+            }.distinct()
+        }
     }
 
     @get:Incremental
     @get:InputFiles
+    @get:PathSensitive(PathSensitivity.RELATIVE)
     abstract val classInputs: ConfigurableFileCollection
 
     @get:InputFile
     @get:Optional
-    @get:PathSensitive(PathSensitivity.ABSOLUTE)
+    @get:PathSensitive(PathSensitivity.RELATIVE)
     abstract val baseMethodMapFile: RegularFileProperty
 
     @get:InputFile
     @get:Optional
-    @get:PathSensitive(PathSensitivity.ABSOLUTE)
+    @get:PathSensitive(PathSensitivity.RELATIVE)
     abstract val blockListFile: RegularFileProperty
 
-    @get:Input
+    /**
+     * The proguard mapping.txt in [mappingDir], if the build is minified.
+     */
+    @get:InputFile
     @get:Optional
+    @get:PathSensitive(PathSensitivity.RELATIVE)
+    abstract val mappingFile: RegularFileProperty
+
+    @get:Internal
     abstract val mappingDir: Property<String>
 
+    @get:Classpath
+    abstract val aopVisitorClasspath: ConfigurableFileCollection
+
+    @get:Input
+    abstract val aopVisitors: ListProperty<String>
+
+    /**
+     * The [com.tencent.matrix.trace.extension.MatrixExtension] switches which change the outputs.
+     */
     @get:Input
-    abstract val traceClassOutputDirectory: Property<String>
+    abstract val traceOptions: MapProperty<String, Boolean>
 
-    @get:OutputFiles
+    @get:OutputDirectory
+    abstract val traceClassOutputDirectory: DirectoryProperty
+
+    /**
+     * The traced classes, all inside [traceClassOutputDirectory].
+     */
+    @get:Internal
     abstract val classOutputs: ConfigurableFileCollection
 
     @get:OutputFile
-    @get:PathSensitive(PathSensitivity.ABSOLUTE)
     @get:Optional
     abstract val ignoreMethodMapFileOutput: RegularFileProperty
 
     @get:OutputFile
-    @get:PathSensitive(PathSensitivity.ABSOLUTE)
     @get:Optional
     abstract val methodMapFileOutput: RegularFileProperty
 
+    @get:OutputFile
     @get:Optional
+    abstract val binaryMethodMapFileOutput: RegularFileProperty
+
+    /**
+     * Caches of this checkout reused by the next build. They hold absolute paths or only save
+     * parsing, so Gradle deletes them instead of restoring them with cached outputs.
+     */
+    @get:LocalState
+    abstract val classHierarchyFile: RegularFileProperty
+
+    @get:LocalState
+    abstract val mappingSnapshotFile: RegularFileProperty
+
+    @get:LocalState
+    abstract val baseMethodMapCacheFile: RegularFileProperty
+
+    @get:Input
     abstract val skipCheckClass: Property<Boolean>
 
+    @get:Inject
+    abstract val workerExecutor: WorkerExecutor
+
+    @get:Internal
+    abstract val traceJobService: Property<TraceJobService>
+
     @TaskAction
     fun execute(inputChanges: InputChanges) {
 
@@ -115,10 +189,17 @@ abstract class MatrixTraceTask : DefaultTask() {
         val start = System.currentTimeMillis()
         try {
 
-            val outputDirectory = File(traceClassOutputDirectory.get())
+            val outputDirectory = traceClassOutputDirectory.get().asFile
+            val isolation = MatrixPlugin.mMatrixExtension.traceWorkerIsolation
+            if (isolation == "process") {
+                traceInWorkerProcess(changedFiles, incremental, outputDirectory)
+                return
+            }
+            val traceExecutor = if (isolation == "daemon") TraceWorkExecutor(workerExecutor.noIsolation(), traceJobService) else null
+            // gzipped reports are declared with their .gz name, MethodCollector appends it itself
             MatrixTrace(
-                    ignoreMethodMapFilePath = ignoreMethodMapFileOutput.asFile.get().absolutePath,
-                    methodMapFilePath = methodMapFileOutput.asFile.get().absolutePath,
+                    ignoreMethodMapFilePath = ignoreMethodMapFileOutput.asFile.get().absolutePath.removeSuffix(".gz"),
+                    methodMapFilePath = methodMapFileOutput.asFile.get().absolutePath.removeSuffix(".gz"),
                     baseMethodMapPath = baseMethodMapFile.asFile.orNull?.absolutePath,
                     blockListFilePath = blockListFile.asFile.orNull?.absolutePath,
                     mappingDir = mappingDir.get(),
@@ -132,14 +213,44 @@ abstract class MatrixTraceTask : DefaultTask() {
                     inputToOutput = ConcurrentHashMap(),
                     legacyReplaceChangedFile = null,
                     legacyReplaceFile = null,
-                    uniqueOutputName = false
+                    uniqueOutputName = false,
+                    traceExecutor = traceExecutor
             )
 
         } catch (e: ExecutionException) {
-            e.printStackTrace()
+            // partial outputs must not be reported as success, nor end up in the build cache
+            throw GradleException("Matrix trace failed: ${e.cause?.message ?: e.message}", e)
+        } finally {
+            val cost = System.currentTimeMillis() - start
+            Log.i(TAG, " Insert matrix trace instrumentations cost time: %sms.", cost)
+        }
+    }
+
+    private fun traceInWorkerProcess(changedFiles: Map<File, Status>, incremental: Boolean, outputDirectory: File) {
+        val matrixExtension = MatrixPlugin.mMatrixExtension
+        val workQueue = workerExecutor.processIsolation { spec ->
+            spec.classpath.from(aopVisitorClasspath)
+            if (!Util.isNullOrNil(matrixExtension.traceWorkerMaxHeapSize)) {
+                spec.forkOptions.maxHeapSize = matrixExtension.traceWorkerMaxHeapSize
+            }
+        }
+        workQueue.submit(MatrixTraceWorkAction::class.java) { parameters ->
+            parameters.matrixExtension.set(matrixExtension.copy())
+            parameters.ignoreMethodMapFilePath.set(ignoreMethodMapFileOutput.asFile.get().absolutePath.removeSuffix(".gz"))
+            parameters.methodMapFilePath.set(methodMapFileOutput.asFile.get().absolutePath.removeSuffix(".gz"))
+            parameters.baseMethodMapPath.set(baseMethodMapFile.asFile.orNull?.absolutePath)
+            parameters.blockListFilePath.set(blockListFile.asFile.orNull?.absolutePath)
+            parameters.mappingDir.set(mappingDir.get())
+            parameters.androidJar.set(TraceClassLoader.getAndroidJar(project))
+            parameters.maxWorkers.set(project.gradle.startParameter.maxWorkerCount)
+            parameters.gradleUserHomeDir.set(project.gradle.gradleUserHomeDir)
+            parameters.classInputs.from(classInputs)
+            parameters.changedFiles.set(changedFiles)
+            parameters.isIncremental.set(incremental)
+            parameters.skipCheckClass.set(skipCheckClass.get())
+            parameters.traceClassOutputDirectory.set(outputDirectory)
         }
-        val cost = System.currentTimeMillis() - start
-        Log.i(TAG, " Insert matrix trace instrumentations cost time: %sms.", cost)
+        workQueue.await()
     }
 
     fun wired(creationConfig: CreationConfig, task: DexArchiveBuilderTask) {
@@ -194,12 +305,45 @@ abstract class MatrixTraceTask : DefaultTask() {
                 task.blockListFile.set(blackListFile)
             }
             task.mappingDir.set(mappingOut)
-            task.traceClassOutputDirectory.set(traceClassOut)
+            // mapping.txt is written by the minify task, only look for it once inputs are fingerprinted
+            task.mappingFile.set(project.layout.file(project.provider {
+                File(mappingOut, "mapping.txt").takeIf { it.isFile }
+            }))
+            task.traceClassOutputDirectory.set(File(traceClassOut))
             task.skipCheckClass.set(extension.isSkipCheckClass)
+            // declared, so Gradle keeps the service alive while the task runs and closes it after
+            val traceJobService = TraceJobService.register(project)
+            task.traceJobService.set(traceJobService)
+            task.usesService(traceJobService)
+
+            // The matrix extension is configured after the task is created, read it lazily
+            val matrixExtension = MatrixPlugin.mMatrixExtension
+            task.aopVisitors.set(project.provider { matrixExtension.aopVisitors.orEmpty().toList() })
+            task.aopVisitorClasspath.from(project.provider { getAopVisitorClasspath(matrixExtension.aopVisitors) })
+            task.traceOptions.set(project.provider {
+                mapOf(
+                        "isAopJar" to matrixExtension.isAopJar,
+                        "isAopSrc" to matrixExtension.isAopSrc,
+                        "isStableMethodId" to matrixExtension.isStableMethodId,
+                        "isReproducibleJar" to matrixExtension.isReproducibleJar,
+                        "isIgnoreMethodMap" to matrixExtension.isIgnoreMethodMap,
+                        "isMethodMapGzip" to matrixExtension.isMethodMapGzip,
+                        "isBinaryMethodMap" to matrixExtension.isBinaryMethodMap,
+                        "isClassHierarchyIndex" to matrixExtension.isClassHierarchyIndex,
+                        "isLenientFrames" to matrixExtension.isLenientFrames
+                )
+            })
 
             // Output properties
-            task.ignoreMethodMapFileOutput.set(File("$mappingOut/ignoreMethodMapping.txt"))
-            task.methodMapFileOutput.set(File("$mappingOut/methodMapping.txt"))
+            val reportSuffix = project.provider { if (matrixExtension.isMethodMapGzip) ".gz" else "" }
+            task.ignoreMethodMapFileOutput.set(project.layout.file(reportSuffix.map { File("$mappingOut/ignoreMethodMapping.txt$it") }))
+            task.methodMapFileOutput.set(project.layout.file(reportSuffix.map { File("$mappingOut/methodMapping.txt$it") }))
+            task.binaryMethodMapFileOutput.set(project.layout.file(project.provider {
+                if (matrixExtension.isBinaryMethodMap) File("$mappingOut/methodMapping.bin") else null
+            }))
+            task.classHierarchyFile.set(File("$mappingOut/classHierarchy.bin"))
+            task.mappingSnapshotFile.set(File("$mappingOut/mappingSnapshot.bin"))
+            task.baseMethodMapCacheFile.set(File("$mappingOut/baseMethodMap.bin"))
         }
     }
 
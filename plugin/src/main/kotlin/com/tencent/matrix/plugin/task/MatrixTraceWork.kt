@@ -0,0 +1,160 @@
+package com.tencent.matrix.plugin.task
+
+import com.android.build.api.transform.Status
+import com.tencent.matrix.plugin.MatrixPlugin
+import com.tencent.matrix.plugin.trace.MatrixTrace
+import com.tencent.matrix.trace.TraceScheduler
+import com.tencent.matrix.trace.extension.MatrixExtension
+import org.gradle.api.Project
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.MapProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+import org.gradle.workers.WorkAction
+import org.gradle.workers.WorkParameters
+import org.gradle.workers.WorkQueue
+import java.io.File
+import java.util.concurrent.AbstractExecutorService
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Executor of the "daemon" worker isolation: each trace job is handed to the Gradle worker API,
+ * so Gradle schedules them against --max-workers together with the rest of the build.
+ *
+ * Jobs share the transform's collector and caches, so they can only run in this daemon without
+ * isolation. They are kept by the [TraceJobService] of the build and only referenced by id from
+ * their [TraceJobAction], they run once the task waits in [await], which lends the task's worker
+ * lease to them.
+ */
+class TraceWorkExecutor(
+        private val workQueue: WorkQueue,
+        private val jobService: Provider<TraceJobService>
+) : AbstractExecutorService(), TraceScheduler.Awaitable {
+
+    @Volatile
+    private var shutdown = false
+
+    override fun execute(command: Runnable) {
+        check(!shutdown) { "trace work executor is shutdown" }
+        val jobId = jobService.get().add(command)
+        workQueue.submit(TraceJobAction::class.java) {
+            it.jobService.set(jobService)
+            it.jobId.set(jobId)
+        }
+    }
+
+    override fun await() {
+        workQueue.await()
+    }
+
+    override fun shutdown() {
+        shutdown = true
+    }
+
+    override fun shutdownNow(): List<Runnable> {
+        shutdown = true
+        return emptyList()
+    }
+
+    override fun isShutdown() = shutdown
+
+    override fun isTerminated() = shutdown
+
+    override fun awaitTermination(timeout: Long, unit: TimeUnit): Boolean {
+        workQueue.await()
+        return true
+    }
+}
+
+/**
+ * Runs one job of a [TraceWorkExecutor]. Jobs are futures, their errors are reported to the
+ * submitter and never fail the work item itself.
+ */
+abstract class TraceJobAction : WorkAction<TraceJobAction.Parameters> {
+    interface Parameters : WorkParameters {
+        val jobService: Property<TraceJobService>
+        val jobId: Property<Long>
+    }
+
+    override fun execute() {
+        parameters.jobService.get().take(parameters.jobId.get())?.run()
+    }
+}
+
+/**
+ * Jobs of the [TraceWorkExecutor]s of one build, waiting for their [TraceJobAction]. Unlike a static,
+ * the service is handed to the actions by Gradle and goes away with the build.
+ */
+abstract class TraceJobService : BuildService<BuildServiceParameters.None> {
+    companion object {
+        private const val NAME = "matrixTraceJobs"
+
+        fun register(project: Project): Provider<TraceJobService> =
+                project.gradle.sharedServices.registerIfAbsent(NAME, TraceJobService::class.java) {}
+    }
+
+    private val jobs = ConcurrentHashMap<Long, Runnable>()
+    private val nextJobId = AtomicLong()
+
+    fun add(job: Runnable): Long {
+        val jobId = nextJobId.incrementAndGet()
+        jobs[jobId] = job
+        return jobId
+    }
+
+    fun take(jobId: Long): Runnable? = jobs.remove(jobId)
+}
+
+/**
+ * The whole trace transform of the "process" worker isolation, run in a worker process with its
+ * own heap. Nothing of the daemon is available there, so the matrix extension and the project
+ * values are sent as parameters.
+ */
+abstract class MatrixTraceWorkAction : WorkAction<MatrixTraceWorkAction.Parameters> {
+    interface Parameters : WorkParameters {
+        val matrixExtension: Property<MatrixExtension>
+        val ignoreMethodMapFilePath: Property<String>
+        val methodMapFilePath: Property<String>
+        val baseMethodMapPath: Property<String>
+        val blockListFilePath: Property<String>
+        val mappingDir: Property<String>
+        val androidJar: RegularFileProperty
+        val maxWorkers: Property<Int>
+        val gradleUserHomeDir: DirectoryProperty
+        val classInputs: ConfigurableFileCollection
+        val changedFiles: MapProperty<File, Status>
+        val isIncremental: Property<Boolean>
+        val skipCheckClass: Property<Boolean>
+        val traceClassOutputDirectory: DirectoryProperty
+    }
+
+    override fun execute() {
+        MatrixPlugin.mMatrixExtension = parameters.matrixExtension.get()
+        MatrixTrace(
+                ignoreMethodMapFilePath = parameters.ignoreMethodMapFilePath.get(),
+                methodMapFilePath = parameters.methodMapFilePath.get(),
+                baseMethodMapPath = parameters.baseMethodMapPath.orNull,
+                blockListFilePath = parameters.blockListFilePath.orNull,
+                mappingDir = parameters.mappingDir.get(),
+                androidJar = parameters.androidJar.asFile.orNull,
+                maxWorkers = parameters.maxWorkers.get(),
+                gradleUserHomeDir = parameters.gradleUserHomeDir.get().asFile
+        ).doTransform(
+                classInputs = parameters.classInputs.files,
+                changedFiles = parameters.changedFiles.get(),
+                isIncremental = parameters.isIncremental.get(),
+                skipCheckClass = parameters.skipCheckClass.get(),
+                traceClassDirectoryOutput = parameters.traceClassOutputDirectory.get().asFile,
+                inputToOutput = ConcurrentHashMap(),
+                legacyReplaceChangedFile = null,
+                legacyReplaceFile = null,
+                uniqueOutputName = false
+        )
+    }
+}
@@ -22,16 +22,18 @@ import com.google.common.hash.Hashing
 import com.tencent.matrix.javalib.util.IOUtil
 import com.tencent.matrix.javalib.util.Log
 import com.tencent.matrix.javalib.util.Util
+import com.tencent.matrix.plugin.MatrixPlugin
+import com.tencent.matrix.plugin.task.MatrixTraceTask
 import com.tencent.matrix.trace.*
 import com.tencent.matrix.trace.item.TraceMethod
 import com.tencent.matrix.trace.retrace.MappingCollector
 import com.tencent.matrix.trace.retrace.MappingReader
+import com.tencent.matrix.trace.retrace.MappingSnapshot
 import org.gradle.api.Project
 import java.io.File
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
 import java.util.concurrent.Future
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -41,8 +43,20 @@ class MatrixTrace(
         private val baseMethodMapPath: String?,
         private val blockListFilePath: String?,
         private val mappingDir: String,
-        private val project: Project
+        private val androidJar: File?,
+        private val maxWorkers: Int,
+        private val gradleUserHomeDir: File
 ) {
+    constructor(
+            ignoreMethodMapFilePath: String,
+            methodMapFilePath: String,
+            baseMethodMapPath: String?,
+            blockListFilePath: String?,
+            mappingDir: String,
+            project: Project
+    ) : this(ignoreMethodMapFilePath, methodMapFilePath, baseMethodMapPath, blockListFilePath, mappingDir,
+            TraceClassLoader.getAndroidJar(project), project.gradle.startParameter.maxWorkerCount, project.gradle.gradleUserHomeDir)
+
     companion object {
         private const val TAG: String = "Matrix.Trace"
 
@@ -82,10 +96,43 @@ class MatrixTrace(
                     traceClassDirectoryOutput: File,
                     legacyReplaceChangedFile: ((File, Map<File, Status>) -> Object)?,
                     legacyReplaceFile: ((File, File) -> (Object))?,
-                    uniqueOutputName: Boolean
+                    uniqueOutputName: Boolean,
+                    traceExecutor: ExecutorService? = null,
+                    classpath: Collection<File> = emptyList(),
+                    markInstrumented: Boolean = false,
+                    instrumentedJars: Map<File, File> = emptyMap()
     ) {
+        val executor = TraceScheduler.acquire(traceClassDirectoryOutput.absolutePath, maxWorkers)
+        try {
+            doTransform(executor, traceExecutor ?: executor, classInputs, changedFiles, inputToOutput, isIncremental, skipCheckClass,
+                    traceClassDirectoryOutput, legacyReplaceChangedFile, legacyReplaceFile, uniqueOutputName, classpath, markInstrumented,
+                    instrumentedJars)
+        } finally {
+            executor.shutdown()
+        }
+    }
 
-        val executor: ExecutorService = Executors.newFixedThreadPool(16)
+    /**
+     * @param traceExecutor runs the per jar and per directory jobs of step 3.
+     * @param classpath classes only referenced by the inputs, for the class loader of the visitors.
+     * @param markInstrumented marks the outputs visited by the aop visitors, see [MethodTracer.PRE_INSTRUMENTED_MARKER].
+     * @param instrumentedJars outputs of the aop artifact transform for the external jar inputs.
+     */
+    private fun doTransform(executor: ExecutorService,
+                            traceExecutor: ExecutorService,
+                            classInputs: Collection<File>,
+                            changedFiles: Map<File, Status>,
+                            inputToOutput: Map<File, File>,
+                            isIncremental: Boolean,
+                            skipCheckClass: Boolean,
+                            traceClassDirectoryOutput: File,
+                            legacyReplaceChangedFile: ((File, Map<File, Status>) -> Object)?,
+                            legacyReplaceFile: ((File, File) -> (Object))?,
+                            uniqueOutputName: Boolean,
+                            classpath: Collection<File>,
+                            markInstrumented: Boolean,
+                            instrumentedJars: Map<File, File>
+    ) {
 
         val config = Configuration.Builder()
                 .setIgnoreMethodMapFilePath(ignoreMethodMapFilePath)
@@ -103,6 +150,21 @@ class MatrixTrace(
 
         val futures = LinkedList<Future<*>>()
 
+        val classHierarchyFile = File(File(config.methodMapFilePath).parentFile, "classHierarchy.bin")
+        val classHierarchy = loadClassHierarchy(classHierarchyFile, isIncremental)
+        // unchanged classes whose super types or referenced classes changed are traced again as well
+        val dependentFiles = if (classHierarchy != null && isIncremental) {
+            classHierarchy.getDependentFiles(changedFiles.filterValues { it != Status.NOTCHANGED }.keys)
+        } else {
+            emptySet<File>()
+        }
+        val scheduledFiles = if (dependentFiles.isEmpty()) {
+            changedFiles
+        } else {
+            Log.i(TAG, "[doTransform] %s dependent class files of changed classes", dependentFiles.size)
+            HashMap(changedFiles).also { map -> dependentFiles.forEach { map[it] = Status.CHANGED } }
+        }
+
         val mappingCollector = MappingCollector()
         val methodId = AtomicInteger(0)
         val collectedMethodMap = ConcurrentHashMap<String, TraceMethod>()
@@ -117,7 +179,7 @@ class MatrixTrace(
             if (file.isDirectory) {
                 futures.add(executor.submit(CollectDirectoryInputTask(
                         directoryInput = file,
-                        mapOfChangedFiles = changedFiles,
+                        mapOfChangedFiles = scheduledFiles,
                         mapOfInputToOutput = inputToOutput,
                         isIncremental = isIncremental,
                         traceClassDirectoryOutput = traceClassDirectoryOutput,
@@ -156,27 +218,106 @@ class MatrixTrace(
          * step 2
          */
         start = System.currentTimeMillis()
-        val methodCollector = MethodCollector(executor, mappingCollector, methodId, config, collectedMethodMap)
-
-        methodCollector.collect(dirInputOutMap.keys, jarInputOutMap.keys)
-        Log.i(TAG, "[doTransform] Step(2)[Collection]... cost:%sms", System.currentTimeMillis() - start)
+        val methodCollector = MethodCollector(executor, mappingCollector, methodId, config, collectedMethodMap, classHierarchy)
+        if (classHierarchy != null && isIncremental) {
+            // dependents are unchanged, they keep their methods and ids
+            val invalidFiles = ArrayList<File>()
+            (dirInputOutMap.keys + jarInputOutMap.keys).filterTo(invalidFiles) { it !in dependentFiles }
+            changedFiles.filterValues { it == Status.REMOVED }.keys.toCollection(invalidFiles)
+            val dropCount = classHierarchy.invalidate(invalidFiles)
+            Log.i(TAG, "[doTransform] drop %s classes of %s changed files", dropCount, invalidFiles.size)
+            val count = classHierarchy.restore(mappingCollector, collectedMethodMap, methodCollector.collectedClassExtendMap, methodId)
+            Log.i(TAG, "[doTransform] restore %s classes and %s methods of unchanged files", classHierarchy.size(), count)
+        }
+        // the tracer reads every class anyway, so let it collect them instead of reading all inputs twice
+        val isFusedCollect = MatrixPlugin.mMatrixExtension.isFusedCollect
+
+        if (!isFusedCollect) {
+            methodCollector.collect(dirInputOutMap.keys, jarInputOutMap.keys)
+            // the reports are not read by the trace step, write them while tracing
+            methodCollector.startSaveCollectedMethods()
+            Log.i(TAG, "[doTransform] Step(2)[Collection]... cost:%sms", System.currentTimeMillis() - start)
+        }
 
         /**
          * step 3
          */
         start = System.currentTimeMillis()
-        val methodTracer = MethodTracer(executor, config,  methodCollector.collectedClassExtendMap)
         val allInputs = ArrayList<File>().also {
             it.addAll(dirInputOutMap.keys)
             it.addAll(jarInputOutMap.keys)
+            it.addAll(classpath)
+        }
+        val aopVisitors = MatrixPlugin.mMatrixExtension.aopVisitors
+        val traceClassLoader = TraceClassLoader.getClassLoader(androidJar, allInputs, MatrixTraceTask.getAopVisitorClasspath(aopVisitors))
+        val visitorRegistry = AopVisitorRegistry.create(traceClassLoader, aopVisitors)
+        visitorRegistry.setClassHierarchy(classHierarchy)
+        visitorRegistry.setLenientFrames(MatrixPlugin.mMatrixExtension.isLenientFrames)
+        val classCache = createClassCache(visitorRegistry)
+        val methodTracer = MethodTracer(traceExecutor, config,  methodCollector.collectedClassExtendMap, classCache,
+                if (isFusedCollect) methodCollector else null)
+        methodTracer.setMarkInstrumented(markInstrumented)
+        methodTracer.setInstrumentedJars(instrumentedJars)
+        methodTracer.setClassDirectories(classInputs.filter { it.isDirectory })
+        methodTracer.setDependentFiles(dependentFiles)
+        try {
+            methodTracer.trace(dirInputOutMap, jarInputOutMap, visitorRegistry, skipCheckClass)
+        } finally {
+            visitorRegistry.close()
+            classCache?.close()
         }
-        val traceClassLoader = TraceClassLoader.getClassLoader(project, allInputs)
-        methodTracer.trace(dirInputOutMap, jarInputOutMap, traceClassLoader, skipCheckClass)
 
-        Log.i(TAG, "[doTransform] Step(3)[Trace]... cost:%sms", System.currentTimeMillis() - start)
+        if (isFusedCollect) {
+            Log.i(TAG, "[doTransform] Step(2+3)[Collection and Trace]... cost:%sms", System.currentTimeMillis() - start)
+            // the tracer started the reports once the last input was collected, they overlap with its last writes
+            start = System.currentTimeMillis()
+            methodCollector.awaitSavedCollectedMethods()
+            Log.i(TAG, "[doTransform] Step(4)[Save reports]... wait:%sms", System.currentTimeMillis() - start)
+        } else {
+            Log.i(TAG, "[doTransform] Step(3)[Trace]... cost:%sms", System.currentTimeMillis() - start)
+            start = System.currentTimeMillis()
+            methodCollector.awaitSavedCollectedMethods()
+            Log.i(TAG, "[doTransform] Step(4)[Save reports]... wait:%sms", System.currentTimeMillis() - start)
+        }
+        // written after the reports, methods carry their ids and original names by then
+        classHierarchy?.write(classHierarchyFile)
 
     }
 
+    /**
+     * @return a new index for full builds, and the index of the previous build for incremental
+     * ones. Null when an incremental build has no index to start from, it would only know the
+     * changed classes.
+     */
+    private fun loadClassHierarchy(file: File, isIncremental: Boolean): ClassHierarchyIndex? {
+        if (!MatrixPlugin.mMatrixExtension.isClassHierarchyIndex) {
+            // a stale index must not be picked up once it is enabled again
+            file.delete()
+            return null
+        }
+        if (!isIncremental) {
+            return ClassHierarchyIndex()
+        }
+        val classHierarchy = ClassHierarchyIndex.read(file)
+        if (classHierarchy == null) {
+            file.delete()
+        }
+        return classHierarchy
+    }
+
+    private fun createClassCache(visitorRegistry: AopVisitorRegistry): TransformedClassCache? {
+        val matrixExtension = MatrixPlugin.mMatrixExtension
+        if (!matrixExtension.isClassCache || visitorRegistry.isEmpty) {
+            return null
+        }
+        val cacheDir = if (Util.isNullOrNil(matrixExtension.classCacheDir)) {
+            File(gradleUserHomeDir, "caches/matrix-trace/classes")
+        } else {
+            File(matrixExtension.classCacheDir)
+        }
+        return TransformedClassCache(cacheDir, matrixExtension.classCacheMaxSize, visitorRegistry.identity)
+    }
+
     class ParseMappingTask
     constructor(
             private val mappingCollector: MappingCollector,
@@ -190,72 +331,28 @@ class MatrixTrace(
 
             val mappingFile = File(config.mappingDir, "mapping.txt")
             if (mappingFile.isFile) {
-                val mappingReader = MappingReader(mappingFile)
-                mappingReader.read(mappingCollector)
+                // parsed mappings are kept next to the method map, and reused while mapping.txt is unchanged
+                val snapshotFile = File(File(config.methodMapFilePath).parentFile, "mappingSnapshot.bin")
+                if (!MappingSnapshot.read(snapshotFile, mappingFile, mappingCollector)) {
+                    val mappingReader = MappingReader(mappingFile)
+                    mappingReader.read(mappingCollector)
+                    MappingSnapshot.write(snapshotFile, mappingFile, mappingCollector)
+                }
             }
+            mappingCollector.buildIndex()
             val size = config.parseBlockFile(mappingCollector)
 
-            val baseMethodMapFile = File(config.baseMethodMapPath)
-            getMethodFromBaseMethod(baseMethodMapFile, collectedMethodMap)
-            retraceMethodMap(mappingCollector, collectedMethodMap)
+            val baseMethodMapCache = if (MatrixPlugin.mMatrixExtension.isBaseMethodMapCache) {
+                File(File(config.methodMapFilePath).parentFile, "baseMethodMap.bin")
+            } else {
+                null
+            }
+            BaseMethodMapReader(File(config.baseMethodMapPath), baseMethodMapCache)
+                    .read(mappingCollector, collectedMethodMap, methodId)
 
             Log.i(TAG, "[ParseMappingTask#run] cost:%sms, black size:%s, collect %s method from %s",
                     System.currentTimeMillis() - start, size, collectedMethodMap.size, config.baseMethodMapPath)
         }
-
-        private fun retraceMethodMap(
-                processor: MappingCollector,
-                methodMap: ConcurrentHashMap<String, TraceMethod>) {
-            val retraceMethodMap = HashMap<String, TraceMethod>(methodMap.size)
-            for (traceMethod in methodMap.values) {
-                traceMethod.proguard(processor)
-                retraceMethodMap[traceMethod.getMethodName()] = traceMethod
-            }
-            methodMap.clear()
-            methodMap.putAll(retraceMethodMap)
-            retraceMethodMap.clear()
-        }
-
-        private fun getMethodFromBaseMethod(
-                baseMethodFile: File,
-                collectedMethodMap: ConcurrentHashMap<String, TraceMethod>) {
-            if (!baseMethodFile.exists()) {
-                Log.w(TAG, "[getMethodFromBaseMethod] not exist!%s", baseMethodFile.absolutePath)
-                return
-            }
-
-            try {
-                Scanner(baseMethodFile, "UTF-8").use { fileReader ->
-                    while (fileReader.hasNext()) {
-                        var nextLine = fileReader.nextLine()
-                        if (!Util.isNullOrNil(nextLine)) {
-                            nextLine = nextLine.trim()
-                            if (nextLine.startsWith("#")) {
-                                Log.i("[getMethodFromBaseMethod] comment %s", nextLine)
-                                continue
-                            }
-                            val fields = nextLine.split(",")
-                            val traceMethod = TraceMethod()
-                            traceMethod.id = Integer.parseInt(fields[0])
-                            traceMethod.accessFlag = Integer.parseInt(fields[1])
-                            val methodField = fields[2].split(" ")
-                            traceMethod.className = methodField[0].replace("/", ".")
-                            traceMethod.methodName = methodField[1]
-                            if (methodField.size > 2) {
-                                traceMethod.desc = methodField[2].replace("/", ".")
-                            }
-                            collectedMethodMap[traceMethod.getMethodName()] = traceMethod
-                            if (methodId.get() < traceMethod.id && traceMethod.id != TraceBuildConstants.METHOD_ID_DISPATCH) {
-                                methodId.set(traceMethod.id)
-                            }
-
-                        }
-                    }
-                }
-            } catch (e: Throwable) {
-                Log.printErrStackTrace(TAG, e, "")
-            }
-        }
     }
 
 
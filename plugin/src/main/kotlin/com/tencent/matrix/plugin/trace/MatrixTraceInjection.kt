@@ -17,15 +17,21 @@
 package com.tencent.matrix.plugin.trace
 
 import com.android.build.gradle.AppExtension
+import com.android.build.gradle.BaseExtension
+import com.android.build.gradle.LibraryExtension
 import com.android.build.gradle.api.BaseVariant
 import com.android.build.gradle.internal.tasks.DexArchiveBuilderTask
 import com.android.build.gradle.internal.tasks.factory.dependsOn
 import com.android.builder.model.CodeShrinker
 import com.tencent.matrix.javalib.util.Log
+import com.tencent.matrix.plugin.MatrixPlugin
+import com.tencent.matrix.plugin.compat.AGPVersion
 import com.tencent.matrix.plugin.compat.CreationConfig
 import com.tencent.matrix.plugin.compat.CreationConfig.Companion.getCodeShrinker
+import com.tencent.matrix.plugin.compat.VersionsCompat
 import com.tencent.matrix.plugin.task.BaseCreationAction
 import com.tencent.matrix.plugin.task.MatrixTraceTask
+import com.tencent.matrix.plugin.transform.MatrixAopArtifactTransform
 import com.tencent.matrix.plugin.transform.MatrixTraceTransform
 import com.tencent.matrix.trace.extension.ITraceSwitchListener
 import com.tencent.matrix.trace.extension.MatrixTraceExtension
@@ -36,6 +42,15 @@ class MatrixTraceInjection : ITraceSwitchListener {
 
     companion object {
         const val TAG = "Matrix.TraceInjection"
+
+        /**
+         * Backend of the AGP 7 instrumentation api, compiled separately against AGP 7 and so only
+         * loaded by name.
+         */
+        private const val INSTRUMENTATION_BACKEND = "com.tencent.matrix.plugin.agp7.MatrixInstrumentation"
+
+        private fun isInstrumentationApi(appExtension: BaseExtension) = appExtension is AppExtension
+                && VersionsCompat.greatThanOrEqual(AGPVersion.AGP_7_0_0)
     }
 
     private var traceEnable = false
@@ -44,12 +59,33 @@ class MatrixTraceInjection : ITraceSwitchListener {
         traceEnable = enable
     }
 
-    fun inject(appExtension: AppExtension,
+    /**
+     * @param appExtension the android extension of an application, or of a library module whose
+     * own classes are then traced by a project scoped transform.
+     */
+    fun inject(appExtension: BaseExtension,
                project: Project,
                extension: MatrixTraceExtension) {
         injectTransparentTransform(appExtension, project, extension)
+        if (isInstrumentationApi(appExtension)) {
+            // variant callbacks have to be registered while the plugin is applied
+            Class.forName(INSTRUMENTATION_BACKEND)
+                    .getMethod("register", Project::class.java, MatrixTraceExtension::class.java)
+                    .invoke(null, project, extension)
+        }
         project.afterEvaluate {
+            if (isInstrumentationApi(appExtension) && MatrixPlugin.mMatrixExtension.isInstrumentationApi) {
+                Log.i(TAG, "aop visitors run in the class pass of AGP %s.", VersionsCompat.androidGradlePluginVersion)
+                return@afterEvaluate
+            }
             if (extension.isEnable) {
+                // dependencies are only packaged, and so instrumented, by the application
+                if (appExtension is AppExtension) {
+                    val matrixExtension = MatrixPlugin.mMatrixExtension
+                    if (matrixExtension.isAopArtifactTransform && matrixExtension.isAopJar) {
+                        MatrixAopArtifactTransform.register(project, extension.isSkipCheckClass)
+                    }
+                }
                 doInjection(appExtension, project, extension)
             }
         }
@@ -57,18 +93,24 @@ class MatrixTraceInjection : ITraceSwitchListener {
 
     private var transparentTransform: MatrixTraceTransform? = null
 
-    private fun injectTransparentTransform(appExtension: AppExtension,
+    private fun injectTransparentTransform(appExtension: BaseExtension,
                                            project: Project,
                                            extension: MatrixTraceExtension) {
 
-        transparentTransform = MatrixTraceTransform(project, extension)
+        transparentTransform = MatrixTraceTransform(project, extension, isLibrary = appExtension is LibraryExtension)
         appExtension.registerTransform(transparentTransform!!)
     }
     
-    private fun doInjection(appExtension: AppExtension,
+    private fun doInjection(appExtension: BaseExtension,
                             project: Project,
                             extension: MatrixTraceExtension) {
-        appExtension.applicationVariants.all { variant ->
+        if (appExtension is LibraryExtension) {
+            // the trace task hooks the dex builder of applications, libraries always use the transform
+            Log.i(TAG, "library transformInjection.")
+            transformInjection()
+            return
+        }
+        (appExtension as AppExtension).applicationVariants.all { variant ->
             if (injectTaskOrTransform(project, extension, variant) == InjectionMode.TransformInjection) {
                 // Inject transform
                 Log.i("MatrixTraceInjection", "transformInjection.")
@@ -0,0 +1,156 @@
+package com.tencent.matrix.plugin.transform
+
+import com.tencent.matrix.javalib.util.Log
+import com.tencent.matrix.plugin.MatrixPlugin
+import com.tencent.matrix.plugin.compat.AGPVersion
+import com.tencent.matrix.plugin.compat.VersionsCompat
+import com.tencent.matrix.plugin.task.MatrixTraceTask
+import com.tencent.matrix.plugin.trace.MatrixTrace
+import com.tencent.matrix.trace.AopVisitorRegistry
+import com.tencent.matrix.trace.MethodTracer
+import com.tencent.matrix.trace.TraceClassLoader
+import org.gradle.api.Project
+import org.gradle.api.artifacts.Configuration
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier
+import org.gradle.api.artifacts.transform.CacheableTransform
+import org.gradle.api.artifacts.transform.InputArtifact
+import org.gradle.api.artifacts.transform.InputArtifactDependencies
+import org.gradle.api.artifacts.transform.TransformAction
+import org.gradle.api.artifacts.transform.TransformOutputs
+import org.gradle.api.artifacts.transform.TransformParameters
+import org.gradle.api.attributes.Attribute
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.FileCollection
+import org.gradle.api.file.FileSystemLocation
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.MapProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.CompileClasspath
+import org.gradle.api.tasks.Input
+import java.io.File
+
+/**
+ * Runs the aop visitors over the class jars of external dependencies as a Gradle artifact
+ * transform, so each dependency is visited once and reused from Gradle's transforms cache
+ * across projects and branches.
+ *
+ * Outputs carry [MethodTracer.PRE_INSTRUMENTED_MARKER], the trace step only copies and collects
+ * them. Only the artifact views of [getInstrumentedJars] request them, the classpaths of the
+ * variants stay untouched. Project dependencies are not transformed, they go through the trace
+ * step as before.
+ */
+@CacheableTransform
+abstract class MatrixAopArtifactTransform : TransformAction<MatrixAopArtifactTransform.Parameters> {
+
+    companion object {
+        private const val TAG = "Matrix.AopArtifactTransform"
+
+        /**
+         * false on the class artifact types, requested as true by the views of [getInstrumentedJars].
+         */
+        @JvmField
+        val AOP_INSTRUMENTED: Attribute<Boolean> = Attribute.of("com.tencent.matrix.aop.instrumented", Boolean::class.javaObjectType)
+
+        private val ARTIFACT_TYPE: Attribute<String> = Attribute.of("artifactType", String::class.java)
+
+        /**
+         * Class jar artifact types of AGP, "android-classes" up to 4.0 and "android-classes-jar" since 4.1.
+         */
+        private val CLASSES_ARTIFACT_TYPES = arrayOf("android-classes", "android-classes-jar")
+
+        fun register(project: Project, skipCheckClass: Boolean) {
+            val matrixExtension = MatrixPlugin.mMatrixExtension
+            val dependencies = project.dependencies
+            dependencies.attributesSchema.attribute(AOP_INSTRUMENTED)
+            for (artifactType in CLASSES_ARTIFACT_TYPES) {
+                dependencies.artifactTypes.maybeCreate(artifactType).attributes.attribute(AOP_INSTRUMENTED, false)
+                dependencies.registerTransform(MatrixAopArtifactTransform::class.java) { spec ->
+                    spec.from.attribute(ARTIFACT_TYPE, artifactType).attribute(AOP_INSTRUMENTED, false)
+                    spec.to.attribute(ARTIFACT_TYPE, artifactType).attribute(AOP_INSTRUMENTED, true)
+                    spec.parameters.aopVisitors.set(matrixExtension.aopVisitors.orEmpty().toList())
+                    spec.parameters.aopVisitorClasspath.from(MatrixTraceTask.getAopVisitorClasspath(matrixExtension.aopVisitors))
+                    TraceClassLoader.getAndroidJar(project)?.let { spec.parameters.bootClasspath.from(it) }
+                    spec.parameters.traceOptions.set(mapOf(
+                            "isAopJar" to matrixExtension.isAopJar,
+                            "isReproducibleJar" to matrixExtension.isReproducibleJar,
+                            "isLenientFrames" to matrixExtension.isLenientFrames
+                    ))
+                    spec.parameters.skipCheckClass.set(skipCheckClass)
+                }
+            }
+            Log.i(TAG, "[register] %s aop visitors on the external runtime classpath", matrixExtension.aopVisitors.orEmpty().size)
+        }
+
+        /**
+         * @return the class jars of the external modules of [configuration] mapped to their
+         * instrumented outputs, resolving the views runs the transform.
+         */
+        fun getInstrumentedJars(configuration: Configuration): Map<File, File> {
+            val artifactType = if (VersionsCompat.greatThanOrEqual(AGPVersion.AGP_4_1_0)) "android-classes-jar" else "android-classes"
+            val views = arrayOf(false, true).map { isInstrumented ->
+                configuration.incoming.artifactView { view ->
+                    view.attributes { it.attribute(ARTIFACT_TYPE, artifactType).attribute(AOP_INSTRUMENTED, isInstrumented) }
+                    view.componentFilter { it is ModuleComponentIdentifier }
+                }.artifacts
+            }
+            val instrumented = views[1].associate { (it.id.componentIdentifier to it.file.name) to it.file }
+            val instrumentedJars = HashMap<File, File>()
+            for (artifact in views[0]) {
+                val name = MatrixTrace.appendSuffix(artifact.file, "aop")
+                instrumented[artifact.id.componentIdentifier to name]?.let { instrumentedJars[artifact.file] = it }
+            }
+            Log.i(TAG, "[getInstrumentedJars] %s of %s external jars of %s", instrumentedJars.size, views[0].artifacts.size, configuration.name)
+            return instrumentedJars
+        }
+    }
+
+    interface Parameters : TransformParameters {
+        @get:Input
+        val aopVisitors: ListProperty<String>
+
+        @get:Classpath
+        val aopVisitorClasspath: ConfigurableFileCollection
+
+        @get:CompileClasspath
+        val bootClasspath: ConfigurableFileCollection
+
+        @get:Input
+        val traceOptions: MapProperty<String, Boolean>
+
+        @get:Input
+        val skipCheckClass: Property<Boolean>
+    }
+
+    @get:InputArtifact
+    @get:Classpath
+    abstract val inputArtifact: Provider<FileSystemLocation>
+
+    /**
+     * Classes the input depends on, so the visitors can compute frames across jars.
+     */
+    @get:InputArtifactDependencies
+    @get:CompileClasspath
+    abstract val inputArtifactDependencies: FileCollection
+
+    override fun transform(outputs: TransformOutputs) {
+        val input = inputArtifact.get().asFile
+        if (!input.isFile) {
+            outputs.dir(input)
+            return
+        }
+        val output = outputs.file(MatrixTrace.appendSuffix(input, "aop"))
+        val classLoader = TraceClassLoader.getClassLoader(parameters.bootClasspath.files.firstOrNull(), listOf(input) + inputArtifactDependencies.files,
+                parameters.aopVisitorClasspath.files)
+        val visitorRegistry = AopVisitorRegistry.create(classLoader, parameters.aopVisitors.get().toTypedArray())
+        val traceOptions = parameters.traceOptions.get()
+        visitorRegistry.setLenientFrames(traceOptions["isLenientFrames"] == true)
+        try {
+            MethodTracer.traceJar(input, output, visitorRegistry, parameters.skipCheckClass.get(),
+                    traceOptions["isAopJar"] == true, traceOptions["isReproducibleJar"] == true)
+        } finally {
+            visitorRegistry.close()
+        }
+    }
+}
@@ -17,11 +17,13 @@
 package com.tencent.matrix.plugin.transform
 
 import com.android.build.api.transform.*
+import com.android.build.gradle.AppExtension
 import com.android.build.gradle.internal.pipeline.TransformManager
 import com.android.builder.model.AndroidProject.FD_OUTPUTS
 import com.android.utils.FileUtils
 import com.google.common.base.Joiner
 import com.tencent.matrix.javalib.util.Log
+import com.tencent.matrix.plugin.MatrixPlugin
 import com.tencent.matrix.plugin.trace.MatrixTrace
 import com.tencent.matrix.trace.Configuration
 import com.tencent.matrix.trace.extension.MatrixTraceExtension
@@ -29,10 +31,16 @@ import org.gradle.api.Project
 import java.io.File
 import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * @param isLibrary traces only the classes of a library module, its outputs are marked with
+ * [com.tencent.matrix.trace.MethodTracer.PRE_INSTRUMENTED_MARKER] so that the application only
+ * collects them.
+ */
 class MatrixTraceTransform(
         private val project: Project,
         private val extension: MatrixTraceExtension,
-        private var transparent: Boolean = false
+        private var transparent: Boolean = false,
+        private val isLibrary: Boolean = false
 ) : Transform() {
 
     companion object {
@@ -56,7 +64,16 @@ class MatrixTraceTransform(
     }
 
     override fun getScopes(): MutableSet<in QualifiedContent.Scope>? {
-        return TransformManager.SCOPE_FULL_PROJECT
+        return if (isLibrary) TransformManager.PROJECT_ONLY else TransformManager.SCOPE_FULL_PROJECT
+    }
+
+    override fun getReferencedScopes(): MutableSet<in QualifiedContent.Scope> {
+        // library modules can only transform their own classes, the rest is needed to compute frames
+        return if (isLibrary) {
+            mutableSetOf(QualifiedContent.Scope.SUB_PROJECTS, QualifiedContent.Scope.EXTERNAL_LIBRARIES)
+        } else {
+            super.getReferencedScopes()
+        }
     }
 
     override fun isIncremental(): Boolean {
@@ -224,6 +241,12 @@ class MatrixTraceTransform(
             }
         }
 
+        val classpath = ArrayList<File>()
+        for (input in invocation.referencedInputs) {
+            input.directoryInputs.mapTo(classpath) { it.file }
+            input.jarInputs.mapTo(classpath) { it.file }
+        }
+
         if (inputFiles.size == 0 || transformDirectory == null) {
             Log.i(TAG, "Matrix trace do not find any input files")
             return
@@ -232,6 +255,16 @@ class MatrixTraceTransform(
         // Get transform root dir.
         val outputDirectory = transformDirectory
 
+        val matrixExtension = MatrixPlugin.mMatrixExtension
+        val instrumentedJars = if (!isLibrary && matrixExtension.isAopArtifactTransform && matrixExtension.isAopJar) {
+            project.extensions.findByType(AppExtension::class.java)?.applicationVariants
+                    ?.find { it.name == invocation.context.variantName }
+                    ?.let { MatrixAopArtifactTransform.getInstrumentedJars(it.runtimeConfiguration) }
+                    .orEmpty()
+        } else {
+            emptyMap()
+        }
+
         MatrixTrace(
                 ignoreMethodMapFilePath = config.ignoreMethodMapFilePath,
                 methodMapFilePath = config.methodMapFilePath,
@@ -248,7 +281,10 @@ class MatrixTraceTransform(
                 inputToOutput = inputToOutput,
                 legacyReplaceChangedFile = null,
                 legacyReplaceFile = null,
-                uniqueOutputName = true
+                uniqueOutputName = true,
+                classpath = classpath,
+                markInstrumented = isLibrary,
+                instrumentedJars = instrumentedJars
         )
 
         val cost = System.currentTimeMillis() - start
@@ -0,0 +1,155 @@
+package com.tencent.matrix.javalib.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RawZipOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void copiesEntriesVerbatim() throws IOException {
+        File input = writeJar("input.jar", 20);
+        File output = new File(temporaryFolder.getRoot(), "output.jar");
+        try (RawZipFile zipFile = new RawZipFile(input);
+             RawZipOutputStream os = new RawZipOutputStream(output)) {
+            for (RawZipFile.Entry entry : zipFile.entries()) {
+                os.copyEntry(zipFile, entry);
+            }
+        }
+        assertSameEntries(input, output);
+    }
+
+    @Test
+    public void rewritesEntriesWithTheirMethod() throws IOException {
+        File input = writeJar("input.jar", 20);
+        File output = new File(temporaryFolder.getRoot(), "output.jar");
+        try (RawZipFile zipFile = new RawZipFile(input);
+             RawZipOutputStream os = new RawZipOutputStream(output)) {
+            for (RawZipFile.Entry entry : zipFile.entries()) {
+                os.putEntry(entry, zipFile.readBytes(entry));
+            }
+            os.putEntry("META-INF/extra", "extra".getBytes(StandardCharsets.UTF_8));
+        }
+        try (ZipFile expected = new ZipFile(input); ZipFile actual = new ZipFile(output)) {
+            assertEquals(expected.size() + 1, actual.size());
+            for (Enumeration<? extends ZipEntry> entries = expected.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                assertEquals(entry.getName(), entry.getMethod(), actual.getEntry(entry.getName()).getMethod());
+                assertArrayEquals(entry.getName(), read(expected, entry), read(actual, actual.getEntry(entry.getName())));
+            }
+            assertArrayEquals("extra".getBytes(StandardCharsets.UTF_8), read(actual, actual.getEntry("META-INF/extra")));
+        }
+    }
+
+    @Test
+    public void skipsDuplicateEntries() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "output.jar");
+        try (RawZipOutputStream os = new RawZipOutputStream(output)) {
+            os.putEntry("a.txt", new byte[]{1});
+            os.putEntry("a.txt", new byte[]{2});
+        }
+        try (ZipFile zipFile = new ZipFile(output)) {
+            assertEquals(1, zipFile.size());
+            assertArrayEquals(new byte[]{1}, read(zipFile, zipFile.getEntry("a.txt")));
+        }
+    }
+
+    @Test
+    public void reproducibleOutputIsStable() throws IOException {
+        File input = writeJar("input.jar", 20);
+        File first = new File(temporaryFolder.getRoot(), "first.jar");
+        File second = new File(temporaryFolder.getRoot(), "second.jar");
+        for (File output : new File[]{first, second}) {
+            try (RawZipFile zipFile = new RawZipFile(input);
+                 RawZipOutputStream os = new RawZipOutputStream(output, true)) {
+                for (RawZipFile.Entry entry : zipFile.entries()) {
+                    os.putEntry(entry, zipFile.readBytes(entry));
+                }
+            }
+        }
+        assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+    }
+
+    @Test
+    public void writesZip64EndRecordsForManyEntries() throws IOException {
+        int count = 0xffff + 10;
+        File output = new File(temporaryFolder.getRoot(), "many.jar");
+        try (RawZipOutputStream os = new RawZipOutputStream(output, true)) {
+            for (int i = 0; i < count; i++) {
+                os.putEntry("e/" + i, new byte[]{(byte) i});
+            }
+        }
+        try (ZipFile zipFile = new ZipFile(output)) {
+            assertEquals(count, zipFile.size());
+            assertArrayEquals(new byte[]{(byte) (count - 1)}, read(zipFile, zipFile.getEntry("e/" + (count - 1))));
+        }
+        try (RawZipFile zipFile = new RawZipFile(output)) {
+            assertEquals(count, zipFile.entries().size());
+            RawZipFile.Entry last = zipFile.entries().get(count - 1);
+            assertEquals("e/" + (count - 1), last.getName());
+            assertArrayEquals(new byte[]{(byte) (count - 1)}, zipFile.readBytes(last));
+        }
+    }
+
+    /**
+     * Half of the entries stored, half deflated.
+     */
+    private File writeJar(String name, int count) throws IOException {
+        File jar = temporaryFolder.newFile(name);
+        try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < count; i++) {
+                byte[] data = ("entry " + i + " of " + name + " ").getBytes(StandardCharsets.UTF_8);
+                ZipEntry entry = new ZipEntry("dir/entry" + i + ".txt");
+                if (i % 2 == 0) {
+                    CRC32 crc32 = new CRC32();
+                    crc32.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCrc(crc32.getValue());
+                }
+                os.putNextEntry(entry);
+                os.write(data);
+                os.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static void assertSameEntries(File expectedJar, File actualJar) throws IOException {
+        try (ZipFile expected = new ZipFile(expectedJar); ZipFile actual = new ZipFile(actualJar)) {
+            assertEquals(expected.size(), actual.size());
+            for (Enumeration<? extends ZipEntry> entries = expected.entries(); entries.hasMoreElements(); ) {
+                ZipEntry entry = entries.nextElement();
+                ZipEntry actualEntry = actual.getEntry(entry.getName());
+                assertEquals(entry.getName(), entry.getCrc(), actualEntry.getCrc());
+                assertEquals(entry.getName(), entry.getCompressedSize(), actualEntry.getCompressedSize());
+                assertArrayEquals(entry.getName(), read(expected, entry), read(actual, actualEntry));
+            }
+        }
+    }
+
+    private static byte[] read(ZipFile zipFile, ZipEntry entry) throws IOException {
+        try (InputStream is = zipFile.getInputStream(entry)) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+}
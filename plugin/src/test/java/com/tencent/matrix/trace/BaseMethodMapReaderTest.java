@@ -0,0 +1,50 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.trace.item.TraceMethod;
+import com.tencent.matrix.trace.retrace.MappingCollector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BaseMethodMapReaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void cacheFollowsContentNotTime() throws Exception {
+        File baseMethodMap = temporaryFolder.newFile("methodMapping.txt");
+        File cacheFile = new File(temporaryFolder.getRoot(), "baseMethodMap.bin");
+        Files.write(baseMethodMap.toPath(), "1,1,com.example.A run ()V\n".getBytes(StandardCharsets.UTF_8));
+        long lastModified = baseMethodMap.lastModified();
+
+        assertEquals(1, read(baseMethodMap, cacheFile).get("com.example.A.run.()V").id);
+        assertTrue(cacheFile.isFile());
+
+        // same size and time, like a copy that preserves times
+        Files.write(baseMethodMap.toPath(), "2,1,com.example.A run ()V\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(baseMethodMap.setLastModified(lastModified));
+
+        assertEquals(2, read(baseMethodMap, cacheFile).get("com.example.A.run.()V").id);
+        assertEquals(2, read(baseMethodMap, cacheFile).get("com.example.A.run.()V").id);
+    }
+
+    private static Map<String, TraceMethod> read(File baseMethodMap, File cacheFile) {
+        MappingCollector mappingCollector = new MappingCollector();
+        mappingCollector.buildIndex();
+        Map<String, TraceMethod> methods = new HashMap<>();
+        new BaseMethodMapReader(baseMethodMap, cacheFile).read(mappingCollector, methods, new AtomicInteger());
+        return methods;
+    }
+}
@@ -0,0 +1,146 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.trace.retrace.MappingCollector;
+import com.tencent.matrix.trace.retrace.MappingReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockListMatcherTest {
+
+    private static final String MAPPING = "com.example.Foo -> a.a:\n"
+            + "com.example.internal.Bar -> a.b:\n"
+            + "com.example.FooBar -> a.c:\n"
+            + "com.example.gen.Main_Factory -> a.d:\n";
+
+    private static final String BLOCK_LIST = "[package]\n"
+            + "-keepclass com/example/Foo\n"
+            + "-keeppackage com/example/internal/\n"
+            + "-keepclass com.example.Plain\n"
+            + "# -keepclass com.example.Commented\n"
+            + "-keepglob com.example.gen.*_Factory\n"
+            + "-keepregex .*\\$\\$Lambda\\$.*\n";
+
+    private static final List<String> CLASS_NAMES = Arrays.asList(
+            "a.a", "a.b", "a.c", "a.d", "a.e",
+            "com.example.Foo", "com.example.FooBar", "com.example.Fo",
+            "com.example.internal.Bar", "com.example.internal.sub.Baz", "com.example.internalBar",
+            "com.example.Plain", "com.example.Plain$Inner", "com.example.Commented",
+            "com.example.gen.Main_Factory", "com.example.gen.sub.Main_Factory", "com.example.gen.Main_FactoryImpl",
+            "com.example.Main$$Lambda$1", "com.example.Main$Lambda",
+            "com/example/Plain", "com/example/internal/Bar",
+            "android.app.Activity", "androidx.core.app.ActivityCompat",
+            "com.tencent.matrix.trace.core.AppMethodBeat", "com.tencent.mm.Main", "");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void sameAnswersAsThePrefixLoop() throws Exception {
+        MappingCollector mappingCollector = readMapping(MAPPING);
+        Configuration configuration = parseBlockFile(mappingCollector);
+
+        for (String clsName : CLASS_NAMES) {
+            assertEquals(clsName, isNeedTrace(configuration, clsName, mappingCollector),
+                    MethodCollector.isNeedTrace(configuration, clsName, mappingCollector));
+            // cached answer
+            assertEquals(clsName, isNeedTrace(configuration, clsName, mappingCollector),
+                    MethodCollector.isNeedTrace(configuration, clsName, mappingCollector));
+        }
+    }
+
+    @Test
+    public void sameAnswersWithoutMapping() throws Exception {
+        MappingCollector mappingCollector = readMapping("");
+        Configuration configuration = parseBlockFile(mappingCollector);
+
+        for (String clsName : CLASS_NAMES) {
+            assertEquals(clsName, isNeedTrace(configuration, clsName, null),
+                    MethodCollector.isNeedTrace(configuration, clsName, null));
+        }
+    }
+
+    @Test
+    public void blocksByRule() throws Exception {
+        MappingCollector mappingCollector = readMapping(MAPPING);
+        Configuration configuration = parseBlockFile(mappingCollector);
+
+        // -keepclass is kept by its proguarded name, and matched as a prefix of the original name
+        assertFalse(MethodCollector.isNeedTrace(configuration, "a.a", mappingCollector));
+        assertFalse(MethodCollector.isNeedTrace(configuration, "com.example.Plain", mappingCollector));
+        assertFalse(MethodCollector.isNeedTrace(configuration, "com.example.Plain$Inner", mappingCollector));
+        assertFalse(MethodCollector.isNeedTrace(configuration, "com/example/Plain", mappingCollector));
+        assertTrue(MethodCollector.isNeedTrace(configuration, "com.example.Commented", mappingCollector));
+
+        // -keeppackage, including the default ones
+        assertFalse(MethodCollector.isNeedTrace(configuration, "android.app.Activity", mappingCollector));
+        assertFalse(MethodCollector.isNeedTrace(configuration, "com.tencent.matrix.trace.core.AppMethodBeat", mappingCollector));
+        assertTrue(MethodCollector.isNeedTrace(configuration, "androidx.core.app.ActivityCompat", mappingCollector));
+        assertTrue(MethodCollector.isNeedTrace(configuration, "com.tencent.mm.Main", mappingCollector));
+
+        // -keepglob and -keepregex see the original name
+        assertFalse(MethodCollector.isNeedTrace(configuration, "a.d", mappingCollector));
+        assertFalse(MethodCollector.isNeedTrace(configuration, "com.example.gen.sub.Main_Factory", mappingCollector));
+        assertTrue(MethodCollector.isNeedTrace(configuration, "com.example.gen.Main_FactoryImpl", mappingCollector));
+        assertFalse(MethodCollector.isNeedTrace(configuration, "com.example.Main$$Lambda$1", mappingCollector));
+        assertTrue(MethodCollector.isNeedTrace(configuration, "com.example.Main$Lambda", mappingCollector));
+    }
+
+    /**
+     * The check before the matcher, a set lookup then a loop over every rule.
+     */
+    private static boolean isNeedTrace(Configuration configuration, String clsName, MappingCollector mappingCollector) {
+        boolean isNeed = true;
+        if (configuration.blockSet.contains(clsName)) {
+            isNeed = false;
+        } else {
+            if (null != mappingCollector) {
+                clsName = mappingCollector.originalClassName(clsName, clsName);
+            }
+            clsName = clsName.replaceAll("/", ".");
+            for (String packageName : configuration.blockSet) {
+                if (clsName.startsWith(packageName.replaceAll("/", "."))) {
+                    isNeed = false;
+                    break;
+                }
+            }
+            for (Pattern pattern : configuration.blockPatterns) {
+                if (pattern.matcher(clsName).matches()) {
+                    isNeed = false;
+                    break;
+                }
+            }
+        }
+        return isNeed;
+    }
+
+    private Configuration parseBlockFile(MappingCollector mappingCollector) throws Exception {
+        File blockListFile = temporaryFolder.newFile("blockList.txt");
+        Files.write(blockListFile.toPath(), BLOCK_LIST.getBytes(StandardCharsets.UTF_8));
+        Configuration configuration = new Configuration();
+        configuration.blockListFilePath = blockListFile.getAbsolutePath();
+        configuration.parseBlockFile(mappingCollector);
+        return configuration;
+    }
+
+    private MappingCollector readMapping(String content) throws Exception {
+        File mapping = temporaryFolder.newFile("mapping.txt");
+        Files.write(mapping.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        MappingCollector mappingCollector = new MappingCollector();
+        new MappingReader(mapping).read(mappingCollector);
+        mappingCollector.buildIndex();
+        return mappingCollector;
+    }
+}
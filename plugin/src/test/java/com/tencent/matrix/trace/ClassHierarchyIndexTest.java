@@ -0,0 +1,167 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.trace.item.TraceMethod;
+import com.tencent.matrix.trace.retrace.MappingCollector;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClassHierarchyIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File classes;
+    private File base;
+    private File sub;
+    private File subSub;
+    private File user;
+    private File other;
+    private File jar;
+    private ClassHierarchyIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        classes = temporaryFolder.newFolder("classes");
+        base = newClassFile("Base");
+        sub = newClassFile("Sub");
+        subSub = newClassFile("SubSub");
+        user = newClassFile("User");
+        other = newClassFile("Other");
+        jar = temporaryFolder.newFile("lib.jar");
+
+        index = new ClassHierarchyIndex();
+        putClass("com/example/Base", "java/lang/Object", base);
+        putClass("com/example/Sub", "com/example/Base", sub);
+        putClass("com/example/SubSub", "com/example/Sub", subSub);
+        putClass("com/example/User", "java/lang/Object", user, "com/example/Base");
+        putClass("com/example/Other", "java/lang/Object", other);
+        putClass("com/example/lib/Lib", "com/example/Base", jar);
+
+        index.addMethod("com/example/Base", TraceMethod.create(5, Opcodes.ACC_PUBLIC, "com/example/Base", "run", "()V"));
+        index.addMethod("com/example/Sub", TraceMethod.create(9, Opcodes.ACC_PUBLIC, "com/example/Sub", "run", "()V"));
+        index.addMethod("com/example/Other", TraceMethod.create(7, Opcodes.ACC_PUBLIC, "com/example/Other", "run", "(I)V"));
+    }
+
+    @Test
+    public void dependentsOfAChangedClass() {
+        Set<File> dependentFiles = index.getDependentFiles(Collections.singletonList(base));
+
+        // subclasses transitively and direct referrers, never the changed file itself or a jar
+        assertEquals(new HashSet<>(Arrays.asList(sub, subSub, user)), dependentFiles);
+        assertTrue(index.getDependentFiles(Collections.singletonList(temporaryFolder.getRoot())).isEmpty());
+    }
+
+    @Test
+    public void dependentsOfASubclassSkipItsSuperclass() {
+        Set<File> dependentFiles = index.getDependentFiles(Collections.singletonList(sub));
+
+        assertEquals(Collections.singleton(subSub), dependentFiles);
+    }
+
+    @Test
+    public void dependentsOnlyReturnExistingFiles() {
+        assertTrue(user.delete());
+
+        assertEquals(new HashSet<>(Arrays.asList(sub, subSub)), index.getDependentFiles(Collections.singletonList(base)));
+    }
+
+    @Test
+    public void invalidateDropsRemovedClasses() {
+        assertTrue(other.delete());
+
+        assertEquals(1, index.invalidate(Collections.singletonList(other)));
+        assertEquals(6 - 1, index.size());
+        assertNull(restore(index, new HashMap<String, TraceMethod>(), new AtomicInteger()).get("com.example.Other.run.(I)V"));
+    }
+
+    @Test
+    public void invalidateDropsClassesBelowADirectory() {
+        assertEquals(5, index.invalidate(Collections.singletonList(classes)));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void restoredMethodsKeepTheirIds() {
+        File file = new File(temporaryFolder.getRoot(), "classHierarchy.bin");
+        index.write(file);
+        ClassHierarchyIndex restored = ClassHierarchyIndex.read(file);
+        assertNotNull(restored);
+        assertEquals(6, restored.size());
+        restored.invalidate(Collections.singletonList(other));
+
+        AtomicInteger methodId = new AtomicInteger(1);
+        Map<String, String> collectedClassExtendMap = new HashMap<>();
+        Map<String, TraceMethod> collectedMethodMap = new HashMap<>();
+        assertEquals(2, restored.restore(emptyMapping(), collectedMethodMap, collectedClassExtendMap, methodId));
+
+        assertEquals(5, collectedMethodMap.get("com.example.Base.run.()V").id);
+        assertEquals(9, collectedMethodMap.get("com.example.Sub.run.()V").id);
+        assertFalse(collectedMethodMap.containsKey("com.example.Other.run.(I)V"));
+        assertEquals(9, methodId.get());
+        assertEquals("com/example/Base", collectedClassExtendMap.get("com/example/Sub"));
+
+        // the hierarchy survives the round trip as well
+        assertEquals(Collections.singleton(subSub), restored.getDependentFiles(Collections.singletonList(sub)));
+    }
+
+    @Test
+    public void baseMethodMapWinsOverRestoredMethods() {
+        Map<String, TraceMethod> collectedMethodMap = new HashMap<>();
+        TraceMethod base = TraceMethod.create(2, Opcodes.ACC_PUBLIC, "com/example/Base", "run", "()V");
+        collectedMethodMap.put(base.getMethodName(), base);
+
+        AtomicInteger methodId = new AtomicInteger(2);
+        restore(index, collectedMethodMap, methodId);
+
+        assertEquals(2, collectedMethodMap.get("com.example.Base.run.()V").id);
+        assertEquals(9, collectedMethodMap.get("com.example.Sub.run.()V").id);
+        assertEquals(9, methodId.get());
+    }
+
+    @Test
+    public void readsNothingWithoutAnIndex() {
+        assertNull(ClassHierarchyIndex.read(new File(temporaryFolder.getRoot(), "missing.bin")));
+    }
+
+    private File newClassFile(String name) throws Exception {
+        File file = new File(classes, "com/example/" + name + ".class");
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private void putClass(String name, String superName, File source, String... references) {
+        index.putClass(name, Opcodes.ACC_PUBLIC, superName, null, references, source.getAbsolutePath());
+    }
+
+    private static Map<String, TraceMethod> restore(ClassHierarchyIndex index, Map<String, TraceMethod> collectedMethodMap,
+                                                    AtomicInteger methodId) {
+        index.restore(emptyMapping(), collectedMethodMap, new HashMap<String, String>(), methodId);
+        return collectedMethodMap;
+    }
+
+    private static MappingCollector emptyMapping() {
+        MappingCollector mappingCollector = new MappingCollector();
+        mappingCollector.buildIndex();
+        return mappingCollector;
+    }
+}
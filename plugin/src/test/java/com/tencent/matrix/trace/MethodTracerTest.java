@@ -0,0 +1,191 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.plugin.MatrixPlugin;
+import com.tencent.matrix.trace.extension.IAopClassVisitorFactory;
+import com.tencent.matrix.trace.extension.MatrixExtension;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MethodTracerTest {
+
+    /**
+     * Classes with enough branches for frame computation to ask for common super classes.
+     */
+    private static final Class<?>[] FIXTURE_CLASSES = {
+            ClassReader.class, ClassWriter.class, ClassVisitor.class, MethodVisitor.class, Label.class, Type.class,
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        MatrixExtension extension = new MatrixExtension();
+        extension.aopVisitors = new String[]{NopVisitor.class.getName()};
+        MatrixPlugin.mMatrixExtension = extension;
+    }
+
+    @Test
+    public void tracedJarIsReproducible() throws Exception {
+        // same classes, entries stamped a day apart
+        File input = writeFixtureJar("input.jar", System.currentTimeMillis());
+        File laterInput = writeFixtureJar("later.jar", System.currentTimeMillis() + 24 * 3600 * 1000L);
+        File first = new File(temporaryFolder.getRoot(), "first.jar");
+        File second = new File(temporaryFolder.getRoot(), "second.jar");
+
+        traceJar(input, first);
+        traceJar(laterInput, second);
+
+        assertFalse(Arrays.equals(Files.readAllBytes(input.toPath()), Files.readAllBytes(first.toPath())));
+        assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+    }
+
+    @Test
+    public void parallelTraceIsReproducible() throws Exception {
+        File jar = writeFixtureJar("input.jar", System.currentTimeMillis());
+        File classes = temporaryFolder.newFolder("classes");
+        for (Class<?> fixtureClass : FIXTURE_CLASSES) {
+            File classFile = new File(classes, fixtureClass.getName().replace('.', '/') + "Copy.class");
+            classFile.getParentFile().mkdirs();
+            Files.write(classFile.toPath(), readClass(fixtureClass));
+        }
+
+        File first = temporaryFolder.newFolder("first");
+        File second = temporaryFolder.newFolder("second");
+        trace(classes, jar, first);
+        trace(classes, jar, second);
+
+        for (String name : new String[]{"input.jar", "classes/org/objectweb/asm/ClassReaderCopy.class",
+                "classes/org/objectweb/asm/LabelCopy.class"}) {
+            assertArrayEquals(name, Files.readAllBytes(new File(first, name).toPath()),
+                    Files.readAllBytes(new File(second, name).toPath()));
+        }
+    }
+
+    @Test
+    public void markerIsNotPackaged() throws Exception {
+        File input = writeFixtureJar("input.jar", System.currentTimeMillis());
+        File instrumented = new File(temporaryFolder.getRoot(), "input_aop.jar");
+        traceJar(input, instrumented);
+        File classes = temporaryFolder.newFolder("classes");
+        File marker = new File(classes, MethodTracer.PRE_INSTRUMENTED_MARKER);
+        marker.getParentFile().mkdirs();
+        assertTrue(marker.createNewFile());
+
+        File outputDir = temporaryFolder.newFolder("output");
+        trace(classes, instrumented, outputDir);
+
+        try (ZipFile zipFile = new ZipFile(instrumented)) {
+            assertNotNull(zipFile.getEntry(MethodTracer.PRE_INSTRUMENTED_MARKER));
+        }
+        try (ZipFile zipFile = new ZipFile(new File(outputDir, instrumented.getName()))) {
+            assertNull(zipFile.getEntry(MethodTracer.PRE_INSTRUMENTED_MARKER));
+            assertNotNull(zipFile.getEntry("org/objectweb/asm/Label.class"));
+        }
+        assertFalse(new File(outputDir, "classes/" + MethodTracer.PRE_INSTRUMENTED_MARKER).exists());
+    }
+
+    private void traceJar(File input, File output) throws IOException {
+        try (URLClassLoader classLoader = newClassLoader(input);
+             AopVisitorRegistry registry = AopVisitorRegistry.create(classLoader, MatrixPlugin.mMatrixExtension.aopVisitors)) {
+            MethodTracer.traceJar(input, output, registry, false, true, true);
+        }
+    }
+
+    private void trace(File classes, File jar, File outputDir) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (URLClassLoader classLoader = newClassLoader(classes, jar);
+             AopVisitorRegistry registry = AopVisitorRegistry.create(classLoader, MatrixPlugin.mMatrixExtension.aopVisitors)) {
+            Map<File, File> srcMap = Collections.singletonMap(classes, new File(outputDir, "classes"));
+            Map<File, File> jarMap = new HashMap<>();
+            jarMap.put(jar, new File(outputDir, jar.getName()));
+            new MethodTracer(pool, null, new ConcurrentHashMap<String, String>(), null, null)
+                    .trace(srcMap, jarMap, registry, false);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static URLClassLoader newClassLoader(File... files) throws IOException {
+        URL[] urls = new URL[files.length];
+        for (int i = 0; i < files.length; i++) {
+            urls[i] = files[i].toURI().toURL();
+        }
+        return new URLClassLoader(urls, MethodTracerTest.class.getClassLoader());
+    }
+
+    private File writeFixtureJar(String name, long time) throws IOException {
+        File jar = new File(temporaryFolder.getRoot(), name);
+        try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (Class<?> fixtureClass : FIXTURE_CLASSES) {
+                ZipEntry entry = new ZipEntry(fixtureClass.getName().replace('.', '/') + ".class");
+                entry.setTime(time);
+                os.putNextEntry(entry);
+                os.write(readClass(fixtureClass));
+                os.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static byte[] readClass(Class<?> clazz) throws IOException {
+        try (InputStream is = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    /**
+     * Puts a NOP in front of every method body, so every class is rewritten and its frames computed.
+     */
+    public static class NopVisitor implements IAopClassVisitorFactory {
+        @Override
+        public ClassVisitor createClassVisitor(int api, ClassVisitor next) {
+            return new ClassVisitor(api, next) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    return new MethodVisitor(api, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                        @Override
+                        public void visitCode() {
+                            super.visitCode();
+                            super.visitInsn(Opcodes.NOP);
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.tencent.matrix.trace.item;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BinaryMethodMapTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readsWrittenMethods() throws Exception {
+        File file = temporaryFolder.newFile("methodMapping.bin");
+        BinaryMethodMap.write(file, Arrays.asList(
+                new BinaryMethodMap.Method(3, 1, "com.example.A", "run", "()V"),
+                new BinaryMethodMap.Method(7, 9, "com.example.B", "call", null),
+                new BinaryMethodMap.Method(5, 1, "com.example.A", "run", "(I)V")
+        ));
+
+        BinaryMethodMap methodMap = BinaryMethodMap.open(file);
+        assertEquals(3, methodMap.size());
+        assertMethod(methodMap.get(3), 3, 1, "com.example.A", "run", "()V");
+        assertMethod(methodMap.get(5), 5, 1, "com.example.A", "run", "(I)V");
+        assertMethod(methodMap.get(7), 7, 9, "com.example.B", "call", null);
+        // gaps and ids out of range
+        assertNull(methodMap.get(4));
+        assertNull(methodMap.get(6));
+        assertNull(methodMap.get(2));
+        assertNull(methodMap.get(8));
+        assertNull(methodMap.get(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void readsEmptyMap() throws Exception {
+        File file = temporaryFolder.newFile("empty.bin");
+        BinaryMethodMap.write(file, Collections.<BinaryMethodMap.Method>emptyList());
+
+        BinaryMethodMap methodMap = BinaryMethodMap.open(file);
+        assertEquals(0, methodMap.size());
+        assertNull(methodMap.get(0));
+        assertNull(methodMap.get(1));
+    }
+
+    private static void assertMethod(BinaryMethodMap.Method method, int id, int accessFlag, String className,
+                                     String methodName, String desc) {
+        assertEquals(id, method.id);
+        assertEquals(accessFlag, method.accessFlag);
+        assertEquals(className, method.className);
+        assertEquals(methodName, method.methodName);
+        assertEquals(desc, method.desc);
+    }
+}
@@ -0,0 +1,122 @@
+package com.tencent.matrix.trace.retrace;
+
+import com.tencent.matrix.javalib.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Throughput of {@link MappingReader} on a generated R8 style mapping, the sequential reader
+ * against the parallel memory-mapped one.
+ * <p>
+ * Run with {@code ./gradlew :plugin:mappingReaderBenchmark -Psize=<MB>}, the size of the generated mapping
+ * (180 by default).
+ * </p>
+ */
+public class MappingReaderBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 180) * 1024 * 1024;
+        // the reader logs every comment line at info level, which would be measured as well
+        Log.setLogLevel("W");
+        File mapping = File.createTempFile("mapping", ".txt");
+        mapping.deleteOnExit();
+        writeMapping(mapping, size);
+        System.out.printf("mapping: %.1fMB%n", mapping.length() / 1024f / 1024);
+
+        final MappingReader reader = new MappingReader(mapping);
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            // the first round of each only warms up
+            for (int round = 0; round <= ROUNDS; round++) {
+                long sequential = time(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        reader.read(new CountingProcessor());
+                        return null;
+                    }
+                });
+                long parallel = time(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        reader.read(new CountingProcessor());
+                        return null;
+                    }
+                }, pool);
+                if (round > 0) {
+                    System.out.printf("round %s: sequential %.1fMB/s, parallel %.1fMB/s%n", round,
+                            throughput(mapping, sequential), throughput(mapping, parallel));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes about {@code size} bytes of class and member mappings, a few names are not ASCII.
+     */
+    static void writeMapping(File file, long size) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            long written = 0;
+            for (int i = 0; written < size; i++) {
+                StringBuilder builder = new StringBuilder();
+                builder.append("# {\"id\":\"sourceFile\",\"fileName\":\"Class").append(i).append(".kt\"}\n");
+                builder.append("com.tencent.sample.module").append(i % 97).append(".Class").append(i)
+                        .append(i % 50 == 0 ? "été" : "").append(" -> a").append(i).append(":\n");
+                builder.append("    java.lang.String field").append(i).append(" -> a\n");
+                for (int j = 0; j < 8; j++) {
+                    builder.append("    ").append(j + 1).append(':').append(j + 4).append(":void method").append(j)
+                            .append("(int,java.lang.String,com.tencent.sample.Model").append(j).append(") -> ")
+                            .append((char) ('a' + j)).append('\n');
+                }
+                writer.write(builder.toString());
+                written += builder.length();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long time(Callable<Void> callable) throws Exception {
+        long start = System.nanoTime();
+        callable.call();
+        return System.nanoTime() - start;
+    }
+
+    private static long time(Callable<Void> callable, ForkJoinPool pool) throws Exception {
+        long start = System.nanoTime();
+        pool.submit(callable).get();
+        return System.nanoTime() - start;
+    }
+
+    private static float throughput(File file, long nanos) {
+        return file.length() / 1024f / 1024 / (nanos / 1e9f);
+    }
+
+    private static class CountingProcessor implements MappingProcessor {
+        int count;
+
+        @Override
+        public boolean processClassMapping(String className, String newClassName) {
+            count++;
+            return true;
+        }
+
+        @Override
+        public void processMethodMapping(String className, String methodReturnType, String methodName,
+                                         String methodArguments, String newClassName, String newMethodName) {
+            count++;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.tencent.matrix.trace.retrace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappingReaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void parallelReadMatchesSequentialRead() throws Exception {
+        File mapping = temporaryFolder.newFile("mapping.txt");
+        // over the size read in parallel
+        MappingReaderBenchmark.writeMapping(mapping, 12 * 1024 * 1024);
+        final MappingReader reader = new MappingReader(mapping);
+
+        RecordingProcessor sequential = new RecordingProcessor();
+        reader.read(sequential);
+
+        final RecordingProcessor parallel = new RecordingProcessor();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    reader.read(parallel);
+                    return null;
+                }
+            }).get();
+        } finally {
+            pool.shutdown();
+        }
+
+        assertTrue(sequential.mappings.size() > 0);
+        assertEquals(sequential.mappings, parallel.mappings);
+    }
+
+    @Test
+    public void decodesUtf8() throws Exception {
+        File mapping = temporaryFolder.newFile("mapping.txt");
+        MappingReaderBenchmark.writeMapping(mapping, 1);
+        RecordingProcessor processor = new RecordingProcessor();
+        new MappingReader(mapping).read(processor);
+
+        assertEquals(Arrays.asList("com.tencent.sample.module0.Class0été", "a0"), processor.mappings.get(0));
+    }
+
+    private static class RecordingProcessor implements MappingProcessor {
+        final List<List<String>> mappings = new ArrayList<>();
+
+        @Override
+        public boolean processClassMapping(String className, String newClassName) {
+            mappings.add(Arrays.asList(className, newClassName));
+            return true;
+        }
+
+        @Override
+        public void processMethodMapping(String className, String methodReturnType, String methodName,
+                                         String methodArguments, String newClassName, String newMethodName) {
+            mappings.add(Arrays.asList(className, methodReturnType, methodName, methodArguments, newClassName, newMethodName));
+        }
+    }
+}
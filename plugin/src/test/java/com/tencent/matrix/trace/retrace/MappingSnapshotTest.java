@@ -0,0 +1,102 @@
+package com.tencent.matrix.trace.retrace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappingSnapshotTest {
+
+    private static final String MAPPING = "com.example.Foo -> a.a:\n"
+            + "    void run() -> a\n"
+            + "    int run(int) -> b\n"
+            + "    com.example.Bar make(java.lang.String) -> c\n"
+            + "com.example.Bar -> a.b:\n"
+            + "    void close() -> a\n";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void restoredCollectorAnswersLikeTheParsedOne() throws Exception {
+        MappingCollector parsed = parse(writeMapping(MAPPING));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bytes);
+        parsed.writeTo(os);
+        os.close();
+        MappingCollector restored = new MappingCollector();
+        restored.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals("com.example.Foo", restored.originalClassName("a.a", null));
+        assertEquals("a.b", restored.proguardClassName("com.example.Bar", null));
+        assertEquals(lookups(parsed), lookups(restored));
+    }
+
+    @Test
+    public void snapshotFollowsContentNotTime() throws Exception {
+        File mapping = writeMapping(MAPPING);
+        File snapshot = new File(temporaryFolder.getRoot(), "mappingSnapshot.bin");
+        MappingSnapshot.write(snapshot, mapping, parse(mapping));
+
+        MappingCollector restored = new MappingCollector();
+        assertTrue(MappingSnapshot.read(snapshot, mapping, restored));
+        assertEquals(lookups(parse(mapping)), lookups(restored));
+
+        // same size and time, like a mapping rewritten within the time granularity
+        long lastModified = mapping.lastModified();
+        Files.write(mapping.toPath(), MAPPING.replace("-> a.b", "-> a.c").getBytes(StandardCharsets.UTF_8));
+        assertTrue(mapping.setLastModified(lastModified));
+        assertFalse(MappingSnapshot.read(snapshot, mapping, new MappingCollector()));
+    }
+
+    private File writeMapping(String content) throws Exception {
+        File mapping = new File(temporaryFolder.getRoot(), "mapping.txt");
+        Files.write(mapping.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return mapping;
+    }
+
+    private static MappingCollector parse(File mapping) throws Exception {
+        MappingCollector mappingCollector = new MappingCollector();
+        new MappingReader(mapping).read(mappingCollector);
+        mappingCollector.buildIndex();
+        return mappingCollector;
+    }
+
+    private static List<String> lookups(MappingCollector mappingCollector) {
+        List<String> lookups = new ArrayList<>();
+        for (String[] method : Arrays.asList(
+                new String[]{"a.a", "a", "()V"},
+                new String[]{"a.a", "b", "(I)I"},
+                new String[]{"a.a", "c", "(Ljava.lang.String;)La.b;"},
+                new String[]{"a.b", "a", "()V"},
+                new String[]{"a.a", "z", "()V"})) {
+            MethodInfo methodInfo = mappingCollector.originalMethodInfo(method[0], method[1], method[2]);
+            lookups.add(methodInfo.getOriginalName() + " " + methodInfo.getDesc());
+        }
+        for (String[] method : Arrays.asList(
+                new String[]{"com.example.Foo", "run", "()V"},
+                new String[]{"com.example.Foo", "run", "(I)I"},
+                new String[]{"com.example.Foo", "make", "(Ljava.lang.String;)Lcom.example.Bar;"})) {
+            MethodInfo methodInfo = mappingCollector.obfuscatedMethodInfo(method[0], method[1], method[2]);
+            lookups.add(methodInfo.getOriginalName() + " " + methodInfo.getDesc());
+        }
+        lookups.add(mappingCollector.originalClassName("a.b", "?"));
+        lookups.add(mappingCollector.proguardClassName("com.example.Foo", "?"));
+        lookups.add(mappingCollector.proguardPackageName("com.example", "?"));
+        return lookups;
+    }
+}